@@ -11,12 +11,14 @@ import java.util.Iterator;
 import java.util.Set;
 
 import org.tiernolan.nervous.network.api.connection.Connection;
+import org.tiernolan.nervous.network.api.connection.SocketProfile;
 
 public class AcceptThread<C extends Connection<C>> extends Thread {
 
 	private final NetworkManagerImpl<C> manager;
 	private final ServerSocketChannel serverChannel;
 	private final Selector selector;
+	private final SocketProfile profile;
 	private volatile boolean running = true;
 	
 	public AcceptThread(NetworkManagerImpl<C> manager, int port) throws IOException {
@@ -24,12 +26,20 @@ public class AcceptThread<C extends Connection<C>> extends Thread {
 	}
 
 	public AcceptThread(NetworkManagerImpl<C> manager, InetSocketAddress addr) throws IOException {
+		this(manager, addr, manager.getSocketProfile(null));
+	}
+
+	public AcceptThread(NetworkManagerImpl<C> manager, InetSocketAddress addr, SocketProfile profile) throws IOException {
 		try {
 			this.setName("AcceptThread {" + addr + "}");
 			this.manager = manager;
+			this.profile = profile;
 			this.selector = SelectorProvider.provider().openSelector();
 			this.serverChannel = ServerSocketChannel.open();
-			this.serverChannel.bind(addr);
+			if (profile != null) {
+				profile.apply(serverChannel);
+			}
+			this.serverChannel.bind(addr, manager.getConfig().getListenBacklog());
 			this.serverChannel.configureBlocking(false);
 			this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 		} catch (IOException e) {
@@ -55,15 +65,24 @@ public class AcceptThread<C extends Connection<C>> extends Thread {
 				Iterator<SelectionKey> i = keys.iterator();
 				while (i.hasNext()) {
 					SelectionKey key = i.next();
-					ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-					SocketChannel channel;
-					try {
-						channel = serverChannel.accept();
-					} catch (IOException e) {
-						manager.getLogger().info("Exception thrown by server socket when accepting " + e);
+					i.remove();
+					if (!key.isValid() || !key.isAcceptable()) {
 						continue;
 					}
-					manager.addChannel(channel);
+					ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+					while (running) {
+						SocketChannel channel;
+						try {
+							channel = serverChannel.accept();
+						} catch (IOException e) {
+							manager.getLogger().info("Exception thrown by server socket when accepting " + e);
+							break;
+						}
+						if (channel == null) {
+							break;
+						}
+						manager.addChannel(channel, profile);
+					}
 				}
 			}
 		} finally {
@@ -0,0 +1,850 @@
+package org.tiernolan.nervous.network;
+
+import javax.net.ssl.SSLContext;
+
+import org.tiernolan.nervous.network.api.connection.SocketProfile;
+import org.tiernolan.nervous.network.balance.RoundRobinAssignment;
+import org.tiernolan.nervous.network.balance.SelectorAssignment;
+
+public class NetworkConfig {
+
+	private volatile ReadDispatch readDispatch = ReadDispatch.EXECUTOR;
+	private volatile int inlineReadByteBudget = 64 * 1024;
+	private volatile long inlineReadNanoBudget = 1000000L;
+	private volatile long timerTickMillis = 10;
+	private volatile int timerWheelSize = 512;
+	private volatile long readIdleTimeout = 0;
+	private volatile long writeIdleTimeout = 0;
+	private volatile long allIdleTimeout = 0;
+	private volatile long idleCheckInterval = 1000;
+	private volatile int listenBacklog = 0;
+	private volatile SelectorAssignment selectorAssignment = new RoundRobinAssignment();
+	private volatile long loadSampleInterval = 1000;
+	private volatile long rebalanceInterval = 0;
+	private volatile double rebalanceRatio = 2.0;
+	private volatile double rebalanceMinByteRate = 1024 * 1024;
+	private volatile SocketProfile socketProfile = null;
+	private volatile int inboundLowWatermark = 0;
+	private volatile int inboundHighWatermark = 0;
+	private volatile long globalInboundLowWatermark = 0;
+	private volatile long globalInboundHighWatermark = 0;
+	private volatile ReadFraming readFraming = ReadFraming.EXACT;
+	private volatile int bulkReadBufferSize = 64 * 1024;
+	private volatile int readPacketBudget = 0;
+	private volatile int readByteBudget = 0;
+	private volatile long outboundLowWatermark = 0;
+	private volatile long outboundHighWatermark = 0;
+	private volatile OutboundOverflowPolicy outboundOverflowPolicy = OutboundOverflowPolicy.NONE;
+	private volatile long outboundStallTimeout = 0;
+	private volatile int writeGatherPackets = 16;
+	private volatile int writeGatherBytes = 64 * 1024;
+	private volatile int writeCorkBytes = 0;
+	private volatile long writeCorkDelay = 0;
+	private volatile boolean directWrite = false;
+	private volatile int streamingBufferSize = 4096;
+	private volatile int chunkSize = 16 * 1024;
+	private volatile TlsMode tlsMode = TlsMode.NONE;
+	private volatile SSLContext tlsContext = null;
+	private volatile int maxBufferSize = 0;
+	private volatile int packetHeaderSize = 0;
+
+	/**
+	 * Gets the read dispatch mode used by the selector threads
+	 *
+	 * @return the read dispatch mode
+	 */
+	public ReadDispatch getReadDispatch() {
+		return readDispatch;
+	}
+
+	/**
+	 * Sets the read dispatch mode used by the selector threads
+	 *
+	 * @param readDispatch
+	 */
+	public void setReadDispatch(ReadDispatch readDispatch) {
+		if (readDispatch == null) {
+			throw new NullPointerException();
+		}
+		this.readDispatch = readDispatch;
+	}
+
+	/**
+	 * Gets the maximum number of bytes a selector thread will read inline per select iteration
+	 *
+	 * @return the byte budget
+	 */
+	public int getInlineReadByteBudget() {
+		return inlineReadByteBudget;
+	}
+
+	/**
+	 * Gets the maximum time, in nanoseconds, a selector thread will spend reading inline per select iteration
+	 *
+	 * @return the time budget
+	 */
+	public long getInlineReadNanoBudget() {
+		return inlineReadNanoBudget;
+	}
+
+	/**
+	 * Sets the per select iteration budget for inline reads.<br>
+	 * <br>
+	 * Once either budget is used up, the remaining readable channels are passed to the executor service.  Each 
+	 * inline read is limited to the remaining byte budget, so a single busy channel cannot overrun it.  The time 
+	 * budget is checked between channels.
+	 *
+	 * @param bytes the byte budget
+	 * @param nanos the time budget in nanoseconds
+	 */
+	public void setInlineReadBudget(int bytes, long nanos) {
+		if (bytes < 0 || nanos < 0) {
+			throw new IllegalArgumentException("Inline read budgets cannot be negative");
+		}
+		this.inlineReadByteBudget = bytes;
+		this.inlineReadNanoBudget = nanos;
+	}
+
+	/**
+	 * Gets the tick duration of the selector timing wheels in milliseconds
+	 *
+	 * @return the tick duration
+	 */
+	public long getTimerTickMillis() {
+		return timerTickMillis;
+	}
+
+	/**
+	 * Gets the number of buckets in the selector timing wheels
+	 *
+	 * @return the wheel size
+	 */
+	public int getTimerWheelSize() {
+		return timerWheelSize;
+	}
+
+	/**
+	 * Sets the tick duration and size of the selector timing wheels.<br>
+	 * <br>
+	 * The timing wheels are created with the selectors, so this must be called before the config is passed to the 
+	 * NetworkManagerImpl constructor.  Calls made after that have no effect.
+	 *
+	 * @param tickMillis the tick duration in milliseconds
+	 * @param wheelSize the number of buckets
+	 */
+	public void setTimerWheel(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Timer tick duration and wheel size must be positive");
+		}
+		this.timerTickMillis = tickMillis;
+		this.timerWheelSize = wheelSize;
+	}
+
+	/**
+	 * Gets the default read idle timeout for new channels in milliseconds
+	 *
+	 * @return the timeout, or 0 if disabled
+	 */
+	public long getReadIdleTimeout() {
+		return readIdleTimeout;
+	}
+
+	/**
+	 * Gets the default write idle timeout for new channels in milliseconds
+	 *
+	 * @return the timeout, or 0 if disabled
+	 */
+	public long getWriteIdleTimeout() {
+		return writeIdleTimeout;
+	}
+
+	/**
+	 * Gets the default total idle timeout for new channels in milliseconds
+	 *
+	 * @return the timeout, or 0 if disabled
+	 */
+	public long getAllIdleTimeout() {
+		return allIdleTimeout;
+	}
+
+	/**
+	 * Sets the default idle timeouts for new channels, in milliseconds.  A timeout of zero disables the check.
+	 *
+	 * @param read the maximum time without any bytes being read
+	 * @param write the maximum time without any bytes being written
+	 * @param all the maximum time without any bytes being read or written
+	 */
+	public void setIdleTimeouts(long read, long write, long all) {
+		if (read < 0 || write < 0 || all < 0) {
+			throw new IllegalArgumentException("Idle timeouts cannot be negative");
+		}
+		this.readIdleTimeout = read;
+		this.writeIdleTimeout = write;
+		this.allIdleTimeout = all;
+	}
+
+	/**
+	 * Gets the interval between idle channel checks in milliseconds
+	 *
+	 * @return the interval
+	 */
+	public long getIdleCheckInterval() {
+		return idleCheckInterval;
+	}
+
+	/**
+	 * Sets the interval between idle channel checks in milliseconds
+	 *
+	 * @param interval
+	 */
+	public void setIdleCheckInterval(long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Idle check interval must be positive");
+		}
+		this.idleCheckInterval = interval;
+	}
+
+	/**
+	 * Gets the backlog used when binding server sockets
+	 *
+	 * @return the backlog, or 0 for the system default
+	 */
+	public int getListenBacklog() {
+		return listenBacklog;
+	}
+
+	/**
+	 * Sets the backlog used when binding server sockets.  This only affects sockets bound after the call.
+	 *
+	 * @param backlog the backlog, or 0 for the system default
+	 */
+	public void setListenBacklog(int backlog) {
+		if (backlog < 0) {
+			throw new IllegalArgumentException("Listen backlog cannot be negative");
+		}
+		this.listenBacklog = backlog;
+	}
+
+	/**
+	 * Gets the strategy used to assign new connections to selectors
+	 *
+	 * @return the assignment strategy
+	 */
+	public SelectorAssignment getSelectorAssignment() {
+		return selectorAssignment;
+	}
+
+	/**
+	 * Sets the strategy used to assign new connections to selectors
+	 *
+	 * @param selectorAssignment
+	 */
+	public void setSelectorAssignment(SelectorAssignment selectorAssignment) {
+		if (selectorAssignment == null) {
+			throw new NullPointerException();
+		}
+		this.selectorAssignment = selectorAssignment;
+	}
+
+	/**
+	 * Gets the interval between selector load samples in milliseconds
+	 *
+	 * @return the interval
+	 */
+	public long getLoadSampleInterval() {
+		return loadSampleInterval;
+	}
+
+	/**
+	 * Sets the interval between selector load samples in milliseconds
+	 *
+	 * @param interval
+	 */
+	public void setLoadSampleInterval(long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Load sample interval must be positive");
+		}
+		this.loadSampleInterval = interval;
+	}
+
+	/**
+	 * Gets the interval between selector rebalance checks in milliseconds
+	 * 
+	 * @return the interval, or 0 if rebalancing is disabled
+	 */
+	public long getRebalanceInterval() {
+		return rebalanceInterval;
+	}
+	
+	/**
+	 * Gets the minimum ratio between a selector's byte rate and the least loaded selector's byte rate before 
+	 * a channel is migrated
+	 * 
+	 * @return the ratio
+	 */
+	public double getRebalanceRatio() {
+		return rebalanceRatio;
+	}
+	
+	/**
+	 * Gets the minimum byte rate, in bytes per second, a selector must have before any of its channels are migrated
+	 * 
+	 * @return the byte rate
+	 */
+	public double getRebalanceMinByteRate() {
+		return rebalanceMinByteRate;
+	}
+	
+	/**
+	 * Sets the selector rebalance parameters.<br>
+	 * <br>
+	 * Every interval, each selector moves at most one channel, its busiest, to the least loaded selector.  The interval 
+	 * should be longer than the load sample interval, so the load estimates can catch up after a move.  A new 
+	 * interval takes effect at the next rebalance, or within the idle check interval if rebalancing was disabled.
+	 * 
+	 * @param interval the interval in milliseconds, or 0 to disable rebalancing
+	 * @param ratio the minimum load ratio between the source and target selectors
+	 * @param minByteRate the minimum byte rate for the source selector
+	 */
+	public void setRebalance(long interval, double ratio, double minByteRate) {
+		if (interval < 0 || minByteRate < 0) {
+			throw new IllegalArgumentException("Rebalance interval and minimum byte rate cannot be negative");
+		}
+		if (!(ratio >= 1.0)) {
+			throw new IllegalArgumentException("Rebalance ratio must be at least 1");
+		}
+		this.rebalanceInterval = interval;
+		this.rebalanceRatio = ratio;
+		this.rebalanceMinByteRate = minByteRate;
+	}
+
+	/**
+	 * Gets the socket profile applied to new channels
+	 * 
+	 * @return the socket profile, or null if not set
+	 */
+	public SocketProfile getSocketProfile() {
+		return socketProfile;
+	}
+	
+	/**
+	 * Sets the socket profile applied to new channels.  Options set in this profile override the options supplied 
+	 * by the protocol, and are overridden by options passed when listening on an address.
+	 * 
+	 * @param socketProfile the socket profile, or null to only use the protocol's options
+	 */
+	public void setSocketProfile(SocketProfile socketProfile) {
+		this.socketProfile = socketProfile == null ? null : new SocketProfile(socketProfile);
+	}
+	
+	/**
+	 * Gets the number of queued inbound packets for a channel at which reading from the channel resumes
+	 * 
+	 * @return the low watermark
+	 */
+	public int getInboundLowWatermark() {
+		return inboundLowWatermark;
+	}
+	
+	/**
+	 * Gets the number of queued inbound packets for a channel at which reading from the channel is suspended
+	 * 
+	 * @return the high watermark, or 0 if disabled
+	 */
+	public int getInboundHighWatermark() {
+		return inboundHighWatermark;
+	}
+	
+	/**
+	 * Sets the per channel watermarks for decoded packets which are waiting to be handled.<br>
+	 * <br>
+	 * When a channel has high packets queued, OP_READ is removed from its interest ops, so TCP flow control slows 
+	 * down the sender.  Reading resumes once the number of queued packets drops to low.
+	 * 
+	 * @param low the low watermark
+	 * @param high the high watermark, or 0 to disable
+	 */
+	public void setInboundWatermarks(int low, int high) {
+		if (low < 0 || high < 0 || (high > 0 && low >= high)) {
+			throw new IllegalArgumentException("Watermarks must not be negative and low must be less than high");
+		}
+		this.inboundLowWatermark = low;
+		this.inboundHighWatermark = high;
+	}
+	
+	/**
+	 * Gets the total number of queued inbound packets at which reading from all channels resumes
+	 * 
+	 * @return the low watermark
+	 */
+	public long getGlobalInboundLowWatermark() {
+		return globalInboundLowWatermark;
+	}
+	
+	/**
+	 * Gets the total number of queued inbound packets at which reading from all channels is suspended
+	 * 
+	 * @return the high watermark, or 0 if disabled
+	 */
+	public long getGlobalInboundHighWatermark() {
+		return globalInboundHighWatermark;
+	}
+	
+	/**
+	 * Sets the watermarks for the total number of decoded packets, across all channels, which are waiting to be 
+	 * handled.
+	 * 
+	 * @param low the low watermark
+	 * @param high the high watermark, or 0 to disable
+	 */
+	public void setGlobalInboundWatermarks(long low, long high) {
+		if (low < 0 || high < 0 || (high > 0 && low >= high)) {
+			throw new IllegalArgumentException("Watermarks must not be negative and low must be less than high");
+		}
+		this.globalInboundLowWatermark = low;
+		this.globalInboundHighWatermark = high;
+	}
+	
+	/**
+	 * Gets the framing mode used when reading from channels
+	 * 
+	 * @return the framing mode
+	 */
+	public ReadFraming getReadFraming() {
+		return readFraming;
+	}
+	
+	/**
+	 * Gets the size of the per channel receive buffer used in BULK framing mode
+	 * 
+	 * @return the buffer size
+	 */
+	public int getBulkReadBufferSize() {
+		return bulkReadBufferSize;
+	}
+	
+	/**
+	 * Sets the framing mode used when reading from channels.  This only affects channels created after the call.<br>
+	 * <br>
+	 * In BULK mode, the receive buffer is increased if required, so that it can hold the largest possible packet.  
+	 * The receive buffer is taken from the buffer pool, which is sized to fit the value set when the config is 
+	 * passed to the NetworkManagerImpl constructor.  Once the config is in use, larger sizes are rejected.
+	 * 
+	 * @param readFraming the framing mode
+	 * @param bufferSize the receive buffer size for BULK mode
+	 */
+	public void setReadFraming(ReadFraming readFraming, int bufferSize) {
+		if (readFraming == null) {
+			throw new NullPointerException();
+		}
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Receive buffer size must be positive");
+		}
+		int max = maxBufferSize;
+		if (max > 0 && bufferSize > max) {
+			throw new IllegalArgumentException("Receive buffer size cannot exceed the buffer pool maximum size of " + max);
+		}
+		this.readFraming = readFraming;
+		this.bulkReadBufferSize = bufferSize;
+	}
+	
+	/**
+	 * Gets the maximum number of packets decoded by a single channel read
+	 * 
+	 * @return the packet budget, or 0 if unlimited
+	 */
+	public int getReadPacketBudget() {
+		return readPacketBudget;
+	}
+	
+	/**
+	 * Gets the maximum number of bytes read by a single channel read
+	 * 
+	 * @return the byte budget, or 0 if unlimited
+	 */
+	public int getReadByteBudget() {
+		return readByteBudget;
+	}
+	
+	/**
+	 * Sets the budget for a single channel read.<br>
+	 * <br>
+	 * Once either budget is used up, the read returns and the channel waits to be selected again, rather than 
+	 * being drained, so one busy channel cannot hold a thread while other channels wait.
+	 * 
+	 * @param packets the packet budget, or 0 for unlimited
+	 * @param bytes the byte budget, or 0 for unlimited
+	 */
+	public void setReadBudget(int packets, int bytes) {
+		if (packets < 0 || bytes < 0) {
+			throw new IllegalArgumentException("Read budgets cannot be negative");
+		}
+		this.readPacketBudget = packets;
+		this.readByteBudget = bytes;
+	}
+	
+	/**
+	 * Gets the number of buffered outbound bytes for a channel at which it becomes writable again
+	 * 
+	 * @return the low watermark
+	 */
+	public long getOutboundLowWatermark() {
+		return outboundLowWatermark;
+	}
+	
+	/**
+	 * Gets the number of buffered outbound bytes for a channel at which it becomes unwritable
+	 * 
+	 * @return the high watermark, or 0 if disabled
+	 */
+	public long getOutboundHighWatermark() {
+		return outboundHighWatermark;
+	}
+	
+	/**
+	 * Sets the per channel watermarks for outbound packets which have not been written to the socket.  Packets 
+	 * are still accepted above the high watermark, but the connection reports that it is not writable.
+	 * 
+	 * @param low the low watermark, in bytes
+	 * @param high the high watermark in bytes, or 0 to disable
+	 */
+	public void setOutboundWatermarks(long low, long high) {
+		if (low < 0 || high < 0 || (high > 0 && low >= high)) {
+			throw new IllegalArgumentException("Watermarks must not be negative and low must be less than high");
+		}
+		this.outboundLowWatermark = low;
+		this.outboundHighWatermark = high;
+	}
+	
+	/**
+	 * Gets the policy for channels which stay above the outbound high watermark for too long
+	 * 
+	 * @return the policy
+	 */
+	public OutboundOverflowPolicy getOutboundOverflowPolicy() {
+		return outboundOverflowPolicy;
+	}
+	
+	/**
+	 * Gets the time, in milliseconds, a channel may stay above the outbound high watermark before the overflow 
+	 * policy is applied
+	 * 
+	 * @return the timeout
+	 */
+	public long getOutboundStallTimeout() {
+		return outboundStallTimeout;
+	}
+	
+	/**
+	 * Sets the policy for channels which stay above the outbound high watermark for longer than the timeout.  Stalled 
+	 * channels are closed by the idle check, so the timeout is only checked every idle check interval.
+	 * 
+	 * @param policy the policy
+	 * @param timeout the timeout in milliseconds
+	 */
+	public void setOutboundOverflowPolicy(OutboundOverflowPolicy policy, long timeout) {
+		if (policy == null) {
+			throw new NullPointerException();
+		}
+		if (timeout < 0) {
+			throw new IllegalArgumentException("Outbound stall timeout cannot be negative");
+		}
+		this.outboundOverflowPolicy = policy;
+		this.outboundStallTimeout = timeout;
+	}
+	
+	/**
+	 * Gets the maximum number of queued packets sent by a single gathering write
+	 * 
+	 * @return the packet limit
+	 */
+	public int getWriteGatherPackets() {
+		return writeGatherPackets;
+	}
+	
+	/**
+	 * Gets the number of encoded bytes after which no more packets are added to a gathering write
+	 * 
+	 * @return the byte limit, or 0 if unlimited
+	 */
+	public int getWriteGatherBytes() {
+		return writeGatherBytes;
+	}
+	
+	/**
+	 * Sets the limits for gathering writes.<br>
+	 * <br>
+	 * Up to the given number of queued packets are encoded into separate buffers and sent with a single 
+	 * write call.  A packet limit of 1 writes each packet on its own.  The byte limit is checked before 
+	 * each packet is added, so a batch may exceed it by up to one packet.
+	 * 
+	 * @param packets the packet limit
+	 * @param bytes the byte limit, or 0 for unlimited
+	 */
+	public void setWriteGather(int packets, int bytes) {
+		if (packets < 1) {
+			throw new IllegalArgumentException("Gathering writes must allow at least one packet");
+		}
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Gathering write byte limit cannot be negative");
+		}
+		this.writeGatherPackets = packets;
+		this.writeGatherBytes = bytes;
+	}
+	
+	/**
+	 * Gets the default number of corked bytes which causes new channels to flush
+	 * 
+	 * @return the byte threshold, or 0 for none
+	 */
+	public int getWriteCorkBytes() {
+		return writeCorkBytes;
+	}
+	
+	/**
+	 * Gets the default maximum time, in milliseconds, that new channels hold written packets before flushing
+	 * 
+	 * @return the delay, or 0 if corking is disabled
+	 */
+	public long getWriteCorkDelay() {
+		return writeCorkDelay;
+	}
+	
+	/**
+	 * Sets the default write corking policy for new channels.<br>
+	 * <br>
+	 * When the delay is non-zero, written packets are held until the corked bytes reach the threshold, the 
+	 * delay expires or Network.flush() is called.  The delay is timed by the selector timing wheel, so it is 
+	 * rounded up to the timer tick.
+	 * 
+	 * @param bytes the byte threshold, or 0 for none
+	 * @param delay the maximum delay in milliseconds, or 0 to disable corking
+	 */
+	public void setWriteCork(int bytes, long delay) {
+		if (bytes < 0 || delay < 0) {
+			throw new IllegalArgumentException("Write cork limits cannot be negative");
+		}
+		this.writeCorkBytes = bytes;
+		this.writeCorkDelay = delay;
+	}
+	
+	/**
+	 * Checks if write requests try to write directly on the calling thread
+	 * 
+	 * @return true if direct writes are enabled
+	 */
+	public boolean isDirectWrite() {
+		return directWrite;
+	}
+	
+	/**
+	 * Sets if write requests try to write directly on the calling thread.<br>
+	 * <br>
+	 * When the channel is idle and has no write pending, the caller performs a non-blocking write straight away, 
+	 * rather than waiting for the selector to report the channel as writable.  Anything which cannot be written 
+	 * is left for the selector.
+	 * 
+	 * @param directWrite true to enable direct writes
+	 */
+	public void setDirectWrite(boolean directWrite) {
+		this.directWrite = directWrite;
+	}
+	
+	/**
+	 * Gets the size of each buffer in the chains used by streaming encoders
+	 * 
+	 * @return the buffer size
+	 */
+	public int getStreamingBufferSize() {
+		return streamingBufferSize;
+	}
+	
+	/**
+	 * Sets the size of each buffer in the chains used by streaming encoders.  The size must be at least the packet 
+	 * header size and no more than the maximum size supplied by the buffer pool.<br>
+	 * <br>
+	 * The buffer pool is sized to fit the value set when the config is passed to the NetworkManagerImpl 
+	 * constructor.  Once the config is in use, larger sizes are rejected.
+	 * 
+	 * @param size the buffer size
+	 */
+	public void setStreamingBufferSize(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Streaming buffer size must be positive");
+		}
+		int max = maxBufferSize;
+		if (max > 0 && size > max) {
+			throw new IllegalArgumentException("Streaming buffer size cannot exceed the buffer pool maximum size of " + max);
+		}
+		this.streamingBufferSize = size;
+	}
+	
+	/**
+	 * Gets the size of the chunks passed to chunked decoders
+	 * 
+	 * @return the chunk size
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * Sets the size of the chunks passed to chunked decoders.  Bodies larger than this are streamed to the 
+	 * decoder in chunks, rather than read into a single buffer.  The size plus the packet header size must be no 
+	 * more than the maximum size supplied by the buffer pool.<br>
+	 * <br>
+	 * The buffer pool is sized to fit the value set when the config is passed to the NetworkManagerImpl 
+	 * constructor.  Once the config is in use, larger sizes are rejected.
+	 * 
+	 * @param size the chunk size
+	 */
+	public void setChunkSize(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		int max = maxBufferSize;
+		if (max > 0 && size + packetHeaderSize > max) {
+			throw new IllegalArgumentException("Chunk size cannot exceed the buffer pool maximum size of " + max + ", less the packet header size");
+		}
+		this.chunkSize = size;
+	}
+	
+	/**
+	 * Sets the buffer pool limits used to check buffer sizes.  If the config is used by more than one network 
+	 * manager, the smallest limit is kept.
+	 * 
+	 * @param maxSize the maximum size supplied by the buffer pool
+	 * @param headerSize the packet header size
+	 */
+	synchronized void setBufferPoolLimits(int maxSize, int headerSize) {
+		if (maxBufferSize == 0 || maxSize - headerSize < maxBufferSize - packetHeaderSize) {
+			this.maxBufferSize = maxSize;
+			this.packetHeaderSize = headerSize;
+		}
+	}
+	
+	/**
+	 * Gets the TLS mode for new channels
+	 * 
+	 * @return the TLS mode
+	 */
+	public TlsMode getTlsMode() {
+		return tlsMode;
+	}
+	
+	/**
+	 * Gets the context used to create the TLS engines for new channels
+	 * 
+	 * @return the context, or null if TLS is disabled
+	 */
+	public SSLContext getTlsContext() {
+		return tlsContext;
+	}
+	
+	/**
+	 * Sets the TLS mode for new channels.<br>
+	 * <br>
+	 * All engines are created from the given context, so sessions are cached by the context and can be resumed by 
+	 * later connections.  Client engines are created with the address of the remote peer, so they can offer a 
+	 * cached session to the server.<br>
+	 * <br>
+	 * In SERVER mode, the context's server session context is changed to use the given cache size and timeout, 
+	 * which affects every other user of the same context.  In CLIENT mode, the context is not changed and the 
+	 * cache limits are ignored.
+	 * 
+	 * @param mode the TLS mode
+	 * @param context the context, which may be null if the mode is NONE
+	 * @param sessionCacheSize the maximum number of cached server sessions, or 0 for no limit
+	 * @param sessionTimeout the time, in seconds, that a server session may be resumed, or 0 for no limit
+	 */
+	public void setTls(TlsMode mode, SSLContext context, int sessionCacheSize, int sessionTimeout) {
+		if (mode == null || (mode != TlsMode.NONE && context == null)) {
+			throw new NullPointerException();
+		}
+		if (sessionCacheSize < 0 || sessionTimeout < 0) {
+			throw new IllegalArgumentException("Session cache limits cannot be negative");
+		}
+		if (mode == TlsMode.SERVER) {
+			context.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+			context.getServerSessionContext().setSessionTimeout(sessionTimeout);
+		}
+		this.tlsMode = mode;
+		this.tlsContext = mode == TlsMode.NONE ? null : context;
+	}
+	
+	public static enum OutboundOverflowPolicy {
+		/**
+		 * Packets are always accepted
+		 */
+		NONE,
+		/**
+		 * New packets are dropped while the channel is stalled
+		 */
+		DROP,
+		/**
+		 * Stalled channels are closed
+		 */
+		CLOSE;
+	}
+	
+	public static enum ExecutionMode {
+		/**
+		 * All selectors share the executor service and the striped executor
+		 */
+		SHARED,
+		/**
+		 * Each selector has its own executor service and striped executor, and connections stay on their shard
+		 */
+		SHARDED;
+	}
+	
+	public static enum HandlerMode {
+		/**
+		 * Packets are handled by a fixed pool of platform threads
+		 */
+		POOL,
+		/**
+		 * Each packet is handled on its own virtual thread, falling back to a cached thread pool if virtual 
+		 * threads are not supported
+		 */
+		VIRTUAL;
+	}
+	
+	public static enum ReadFraming {
+		/**
+		 * The header and body of each packet are read separately, into buffers of the exact size
+		 */
+		EXACT,
+		/**
+		 * As much data as is available is read into a receive buffer, and all complete frames are decoded from it
+		 */
+		BULK;
+	}
+	
+	public static enum TlsMode {
+		/**
+		 * Channels are not encrypted
+		 */
+		NONE,
+		/**
+		 * Channels act as the client side of the TLS handshake
+		 */
+		CLIENT,
+		/**
+		 * Channels act as the server side of the TLS handshake
+		 */
+		SERVER;
+	}
+	
+	public static enum ReadDispatch {
+		/**
+		 * Reads are always submitted to the executor service
+		 */
+		EXECUTOR,
+		/**
+		 * Reads are performed on the selector thread, until the per iteration budget is used up
+		 */
+		INLINE;
+	}
+
+}
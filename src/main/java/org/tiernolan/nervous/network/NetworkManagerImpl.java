@@ -1,42 +1,79 @@
 package org.tiernolan.nervous.network;
 
 import java.io.IOException;
+import java.lang.ref.Reference;
 import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import org.tiernolan.nervous.network.NetworkConfig.ExecutionMode;
+import org.tiernolan.nervous.network.NetworkConfig.HandlerMode;
 import org.tiernolan.nervous.network.api.NetworkManager;
 import org.tiernolan.nervous.network.api.connection.Connection;
+import org.tiernolan.nervous.network.api.connection.Network;
+import org.tiernolan.nervous.network.api.connection.SocketProfile;
+import org.tiernolan.nervous.network.api.protocol.CompressionProvider;
+import org.tiernolan.nervous.network.api.protocol.Encoder;
 import org.tiernolan.nervous.network.api.protocol.Packet;
 import org.tiernolan.nervous.network.api.protocol.Protocol;
+import org.tiernolan.nervous.network.api.protocol.SocketProfileProvider;
+import org.tiernolan.nervous.network.api.protocol.StreamingEncoder;
+import org.tiernolan.nervous.network.bufferpool.BufferChain;
 import org.tiernolan.nervous.network.bufferpool.ByteBufferPool;
+import org.tiernolan.nervous.network.bufferpool.SharedBuffer;
 import org.tiernolan.nervous.network.connection.ChannelHandler;
+import org.tiernolan.nervous.network.connection.FrameCompressor;
 import org.tiernolan.nervous.network.connection.SelectorHandler;
+import org.tiernolan.nervous.network.connection.Serdes;
+import org.tiernolan.nervous.network.connection.TlsChannel;
 import org.tiernolan.nervous.network.queue.PacketWrapper;
 import org.tiernolan.nervous.network.queue.StripedExecutor;
 import org.tiernolan.nervous.network.queue.StripedMergingQueue;
 import org.tiernolan.nervous.network.queue.StripedQueue;
 import org.tiernolan.nervous.network.queue.StripedQueueImpl;
+import org.tiernolan.nervous.network.queue.VirtualThreads;
 
 public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManager<C> {
 	
+	private final static SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
+	
 	private final Protocol<C> protocol;
+	private final NetworkConfig config;
 	private final ByteBufferPool byteBufferPool;
+	private volatile ByteBufferPool tlsBufferPool;
+	private final FrameCompressor frameCompressor;
 	private final Logger logger;
-	private final ExecutorService pool;
-	private final StripedExecutor<C> handlerPool; 
+	private final ExecutionMode executionMode;
+	private final HandlerMode handlerMode;
+	private final ExecutorService[] pools;
+	private final StripedExecutor<C>[] handlerPools; 
 	private final SelectorHandler<C>[] selectorHandlers;
-	private final AtomicInteger selectorCounter = new AtomicInteger(0);
-	private final StripedMergingQueue<PacketWrapper<C>> masterQueue;
+	private final StripedMergingQueue<PacketWrapper<C>>[] masterQueues;
 	private final ConcurrentHashMap<ChannelHandler<C>, Boolean> channels = new ConcurrentHashMap<ChannelHandler<C>, Boolean>();
 	private final ConcurrentLinkedQueue<AcceptThread<C>> acceptThreads = new ConcurrentLinkedQueue<AcceptThread<C>>();
+	private final AtomicLong inboundPackets = new AtomicLong(0);
+	private final AtomicBoolean inboundSuspended = new AtomicBoolean(false);
+	private final AtomicLong outboundDrops = new AtomicLong(0);
+	private final AtomicLong compressionBytesIn = new AtomicLong(0);
+	private final AtomicLong compressionBytesOut = new AtomicLong(0);
+	private final AtomicLong compressionNanos = new AtomicLong(0);
+	private final AtomicLong decompressionNanos = new AtomicLong(0);
+	private final ConcurrentLinkedQueue<ChannelHandler<C>> inboundSuspendedChannels = new ConcurrentLinkedQueue<ChannelHandler<C>>();
 	private boolean running = true;
 	private final Object configSync = new Object();
 	
@@ -45,15 +82,82 @@ public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManag
 	}
 	
 	public NetworkManagerImpl(int selectors, int poolSize, Protocol<C> protocol) {
+		this(selectors, poolSize, protocol, ExecutionMode.SHARED);
+	}
+	
+	/**
+	 * Creates a network manager.<br>
+	 * <br>
+	 * In SHARED mode, all selectors share one executor service, one merging queue and one striped executor, each 
+	 * with poolSize threads.  In SHARDED mode, each selector is the start of a shard, with its own executor service, 
+	 * merging queue and striped executor, each with poolSize threads.  Since buffer pools are thread local, each 
+	 * shard also has its own buffer pools.
+	 * 
+	 * @param selectors the number of selectors
+	 * @param poolSize the number of threads per pool
+	 * @param protocol the protocol
+	 * @param executionMode the execution mode
+	 */
+	public NetworkManagerImpl(int selectors, int poolSize, Protocol<C> protocol, ExecutionMode executionMode) {
+		this(selectors, poolSize, protocol, executionMode, HandlerMode.POOL);
+	}
+	
+	/**
+	 * Creates a network manager.<br>
+	 * <br>
+	 * In POOL mode, packets are handled by poolSize platform threads per striped executor.  In VIRTUAL mode, 
+	 * each packet is handled on its own virtual thread, while packets in the same stripe are still handled serially, 
+	 * so blocking handlers do not hold up other stripes.
+	 * 
+	 * @param selectors the number of selectors
+	 * @param poolSize the number of threads per pool
+	 * @param protocol the protocol
+	 * @param executionMode the execution mode
+	 * @param handlerMode the handler mode
+	 */
+	public NetworkManagerImpl(int selectors, int poolSize, Protocol<C> protocol, ExecutionMode executionMode, HandlerMode handlerMode) {
+		this(selectors, poolSize, protocol, executionMode, handlerMode, new NetworkConfig());
+	}
+	
+	/**
+	 * Creates a network manager using the given config.<br>
+	 * <br>
+	 * The selectors are created by the constructor, so settings which are only read when a selector is created, 
+	 * such as the timing wheel, must be set on the config before it is passed in.
+	 * 
+	 * @param selectors the number of selectors
+	 * @param poolSize the number of threads per pool
+	 * @param protocol the protocol
+	 * @param executionMode the execution mode
+	 * @param handlerMode the handler mode
+	 * @param config the config
+	 */
+	public NetworkManagerImpl(int selectors, int poolSize, Protocol<C> protocol, ExecutionMode executionMode, HandlerMode handlerMode, NetworkConfig config) {
+		if (executionMode == null || handlerMode == null || config == null) {
+			throw new NullPointerException();
+		}
+		this.config = config;
 		this.protocol = protocol;
-		this.masterQueue = new StripedMergingQueue<PacketWrapper<C>>();
-		this.byteBufferPool = new ByteBufferPool(protocol.getMaxPacketSize());
+		this.executionMode = executionMode;
+		this.handlerMode = handlerMode;
+		int shards = executionMode == ExecutionMode.SHARDED ? selectors : 1;
+		this.masterQueues = getMasterQueueArray(shards);
+		this.pools = new ExecutorService[shards];
+		for (int i = 0; i < shards; i++) {
+			this.masterQueues[i] = new StripedMergingQueue<PacketWrapper<C>>();
+			this.pools[i] = executionMode == ExecutionMode.SHARDED ? Executors.newFixedThreadPool(poolSize, new ShardThreadFactory(i)) : Executors.newFixedThreadPool(poolSize);
+		}
+		int headerSize = protocol.getPacketHeaderSize();
+		int bufferPoolSize = Math.max(protocol.getMaxPacketSize(), Math.max(config.getStreamingBufferSize(), headerSize + config.getChunkSize()));
+		bufferPoolSize = Math.max(bufferPoolSize, config.getBulkReadBufferSize());
+		this.byteBufferPool = new ByteBufferPool(bufferPoolSize);
+		config.setBufferPoolLimits(byteBufferPool.getMaxSize(), headerSize);
 		this.logger = Logger.getLogger(getClass().getName());
-		this.pool = Executors.newFixedThreadPool(poolSize);
+		this.frameCompressor = protocol instanceof CompressionProvider ? new FrameCompressor((CompressionProvider) protocol, this, selectors + poolSize) : null;
 		this.selectorHandlers = getSelectorHandlerArray(selectors);
 		for (int i = 0; i < selectorHandlers.length; i++) {
 			try {
-				this.selectorHandlers[i] = new SelectorHandler<C>(this);
+				this.selectorHandlers[i] = new SelectorHandler<C>(this, pools[i % shards]);
 			} catch (IOException e) {
 				getLogger().info("Unable to setup selectors " + e);
 				for (int j = 0; j < i; j++) {
@@ -64,7 +168,32 @@ public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManag
 		for (int i = 0; i < selectorHandlers.length; i++) {
 			selectorHandlers[i].start();
 		}
-		handlerPool = new StripedExecutor<C>(this, masterQueue, poolSize);
+		this.handlerPools = getStripedExecutorArray(shards);
+		for (int i = 0; i < shards; i++) {
+			if (handlerMode == HandlerMode.VIRTUAL) {
+				handlerPools[i] = new StripedExecutor<C>(this, masterQueues[i], VirtualThreads.newPerTaskExecutor());
+			} else {
+				handlerPools[i] = new StripedExecutor<C>(this, masterQueues[i], poolSize);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the SO_REUSEPORT option.  The option was added in Java 9, so it is looked up by reflection.
+	 * 
+	 * @return the option, or null if the JVM does not support it
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (NoSuchFieldException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -72,19 +201,114 @@ public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManag
 		return new SelectorHandler[size];
 	}
 	
+	@SuppressWarnings("unchecked")
+	private StripedMergingQueue<PacketWrapper<C>>[] getMasterQueueArray(int size) {
+		return new StripedMergingQueue[size];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private StripedExecutor<C>[] getStripedExecutorArray(int size) {
+		return new StripedExecutor[size];
+	}
+	
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+	
+	public HandlerMode getHandlerMode() {
+		return handlerMode;
+	}
+	
+	public NetworkConfig getConfig() {
+		return config;
+	}
+	
 	public ByteBufferPool getByteBufferPool() {
 		return byteBufferPool;
 	}
+	
+	/**
+	 * Gets the buffer pool for TLS records.  Records can be larger than the largest packet, so, unless the main 
+	 * pool can already supply them, a separate pool is created the first time a TLS channel needs one.
+	 * 
+	 * @return the buffer pool
+	 */
+	public ByteBufferPool getTlsBufferPool() {
+		ByteBufferPool pool = tlsBufferPool;
+		if (pool == null) {
+			synchronized (configSync) {
+				pool = tlsBufferPool;
+				if (pool == null) {
+					pool = byteBufferPool.getMaxSize() >= TlsChannel.BUFFER_SIZE ? byteBufferPool : new ByteBufferPool(TlsChannel.BUFFER_SIZE);
+					tlsBufferPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Gets the frame compressor shared by all channels
+	 * 
+	 * @return the compressor, or null if the protocol does not support compression
+	 */
+	public FrameCompressor getFrameCompressor() {
+		return frameCompressor;
+	}
 
 	public Protocol<C> getProtocol() {
 		return protocol;
 	}
 	
+	/**
+	 * Gets the socket profile for new channels.  The protocol's options are overridden by the options in the 
+	 * config, which are overridden by the given options.
+	 * 
+	 * @param override the overriding options, or null
+	 * @return the socket profile
+	 */
+	public SocketProfile getSocketProfile(SocketProfile override) {
+		SocketProfile profile = new SocketProfile();
+		if (protocol instanceof SocketProfileProvider) {
+			profile = profile.merge(((SocketProfileProvider) protocol).getSocketProfile());
+		}
+		return profile.merge(config.getSocketProfile()).merge(override);
+	}
+	
 	public boolean addChannel(SocketChannel channel) {
-		SelectorHandler<C> selectorHandler = selectorHandlers[selectorCounter.getAndIncrement() % selectorHandlers.length];
-		StripedQueue<PacketWrapper<C>> channelQueue = new StripedQueueImpl<PacketWrapper<C>>(masterQueue);
-		ChannelHandler<C> channelHandler = selectorHandler.addChannel(channel, channelQueue);
-		return channelHandler != null;
+		return addChannel(channel, getSocketProfile(null));
+	}
+	
+	/**
+	 * Adds a channel to one of the selectors
+	 * 
+	 * @param channel the channel
+	 * @param profile the socket options to apply to the channel
+	 * @return false if the channel could not be added
+	 */
+	public boolean addChannel(SocketChannel channel, SocketProfile profile) {
+		if (profile != null) {
+			try {
+				profile.apply(channel);
+			} catch (IOException e) {
+				getLogger().info("Unable to apply socket options to " + channel + ", " + e.getMessage());
+			}
+		}
+		int index = config.getSelectorAssignment().select(selectorHandlers);
+		if (index < 0 || index >= selectorHandlers.length) {
+			getLogger().info("Selector assignment returned invalid index " + index);
+			index = 0;
+		}
+		SelectorHandler<C> selectorHandler = selectorHandlers[index];
+		StripedQueue<PacketWrapper<C>> channelQueue = new StripedQueueImpl<PacketWrapper<C>>(masterQueues[index % masterQueues.length]);
+		if (!selectorHandler.queueChannel(channel, channelQueue)) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			return false;
+		}
+		return true;
 	}
 	
 	public void register(ChannelHandler<C> handler) {
@@ -99,12 +323,340 @@ public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManag
 		}
 	}
 
+	/**
+	 * Writes a packet to every open channel.  The packet is encoded once, and every channel sends the same buffer.
+	 * 
+	 * @param p the packet
+	 * @return the number of channels the packet was written to
+	 */
+	public int broadcast(Packet<C> p) {
+		SharedBuffer buffer = encodeShared(p);
+		int count = 0;
+		try {
+			for (ChannelHandler<C> handler : channels.keySet()) {
+				handler.writeShared(buffer);
+				count++;
+			}
+		} finally {
+			buffer.release();
+		}
+		return count;
+	}
+	
+	/**
+	 * Writes a packet to the given connections.  The packet is encoded once, and every connection sends the same 
+	 * buffer.  The pool buffer is returned once all of the connections have written it.
+	 * 
+	 * @param p the packet
+	 * @param connections the connections
+	 */
+	public void broadcast(Packet<C> p, Collection<? extends C> connections) {
+		SharedBuffer buffer = encodeShared(p);
+		try {
+			for (C connection : connections) {
+				Network<C> network = connection.getNetwork();
+				if (network instanceof Serdes) {
+					((Serdes<C>) network).writeShared(buffer);
+				} else {
+					network.writePacket(p);
+				}
+			}
+		} finally {
+			buffer.release();
+		}
+	}
+	
+	private SharedBuffer encodeShared(Packet<C> p) {
+		Encoder<Packet<C>, C> e = protocol.getPacketEncoder(p);
+		if (e == null) {
+			throw new IllegalArgumentException("No encoder found for packet");
+		}
+		if (e instanceof StreamingEncoder) {
+			return encodeShared(p, (StreamingEncoder<Packet<C>, C>) e);
+		}
+		int size = protocol.getPacketHeaderSize() + e.getPacketBodySize(p);
+		Reference<ByteBuffer> ref = byteBufferPool.get(size);
+		ByteBuffer buf = ref.get();
+		e.encode(p, buf);
+		buf.flip();
+		return new SharedBuffer(byteBufferPool, ref);
+	}
+	
+	/**
+	 * Encodes a packet with a streaming encoder and copies the chain into a single buffer, so it can be shared
+	 */
+	private SharedBuffer encodeShared(Packet<C> p, StreamingEncoder<Packet<C>, C> e) {
+		BufferChain chain = new BufferChain(byteBufferPool, config.getStreamingBufferSize());
+		try {
+			int headerSize = protocol.getPacketHeaderSize();
+			ByteBuffer header = chain.reserve(headerSize);
+			e.encodeBody(p, chain);
+			e.encodeHeader(p, chain.size() - headerSize, header);
+			int size = chain.size();
+			if (size > byteBufferPool.getMaxSize()) {
+				throw new IllegalArgumentException("Encoded packet of " + size + " bytes is too large to broadcast");
+			}
+			Reference<ByteBuffer> ref = byteBufferPool.get(size);
+			ByteBuffer buf = ref.get();
+			for (ByteBuffer link : chain.flip()) {
+				buf.put(link);
+			}
+			buf.flip();
+			return new SharedBuffer(byteBufferPool, ref);
+		} finally {
+			chain.release();
+		}
+	}
+
+	/**
+	 * Records a decoded packet waiting to be handled
+	 * 
+	 * @return false if the global high watermark has been reached
+	 */
+	public boolean inboundQueued() {
+		long count = inboundPackets.incrementAndGet();
+		long high = config.getGlobalInboundHighWatermark();
+		if (high > 0 && count >= high && inboundSuspended.compareAndSet(false, true)) {
+			if (inboundPackets.get() <= config.getGlobalInboundLowWatermark()) {
+				resumeInbound();
+			}
+		}
+		return !inboundSuspended.get();
+	}
+	
+	/**
+	 * Records that a decoded packet has been handled
+	 */
+	public void inboundHandled() {
+		if (inboundPackets.decrementAndGet() <= config.getGlobalInboundLowWatermark()) {
+			resumeInbound();
+		}
+	}
+	
+	/**
+	 * Adds a channel to the set of channels to resume once the number of queued packets drops to the global 
+	 * low watermark
+	 * 
+	 * @param handler
+	 * @return false if reading is no longer suspended
+	 */
+	public boolean suspendInbound(ChannelHandler<C> handler) {
+		inboundSuspendedChannels.add(handler);
+		return inboundSuspended.get();
+	}
+	
+	/**
+	 * Gets the total number of decoded packets waiting to be handled
+	 * 
+	 * @return the number of packets
+	 */
+	public long getInboundPackets() {
+		return inboundPackets.get();
+	}
+	
+	/**
+	 * Records an outbound packet dropped because its channel was stalled
+	 */
+	public void outboundDropped() {
+		outboundDrops.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the total number of outbound packets dropped because their channel was stalled
+	 * 
+	 * @return the number of dropped packets
+	 */
+	public long getOutboundDrops() {
+		return outboundDrops.get();
+	}
+	
+	/**
+	 * Records a body passed to the compression stage
+	 * 
+	 * @param in the uncompressed size
+	 * @param out the size sent, which is the uncompressed size if compression did not help
+	 * @param nanos the time spent compressing
+	 */
+	public void compressed(long in, long out, long nanos) {
+		compressionBytesIn.addAndGet(in);
+		compressionBytesOut.addAndGet(out);
+		compressionNanos.addAndGet(nanos);
+	}
+	
+	/**
+	 * Records a body inflated by the compression stage
+	 * 
+	 * @param nanos the time spent decompressing
+	 */
+	public void decompressed(long nanos) {
+		decompressionNanos.addAndGet(nanos);
+	}
+	
+	/**
+	 * Gets the total size of the bodies passed to the compression stage
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getCompressionBytesIn() {
+		return compressionBytesIn.get();
+	}
+	
+	/**
+	 * Gets the total size of the bodies sent by the compression stage
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getCompressionBytesOut() {
+		return compressionBytesOut.get();
+	}
+	
+	/**
+	 * Gets the ratio of the bytes sent to the bytes passed to the compression stage
+	 * 
+	 * @return the ratio, or 1.0 if nothing has been compressed
+	 */
+	public double getCompressionRatio() {
+		long in = compressionBytesIn.get();
+		if (in == 0) {
+			return 1.0;
+		}
+		return compressionBytesOut.get() / (double) in;
+	}
+	
+	/**
+	 * Gets the total time spent compressing bodies
+	 * 
+	 * @return the time in nanoseconds
+	 */
+	public long getCompressionNanos() {
+		return compressionNanos.get();
+	}
+	
+	/**
+	 * Gets the total time spent decompressing bodies
+	 * 
+	 * @return the time in nanoseconds
+	 */
+	public long getDecompressionNanos() {
+		return decompressionNanos.get();
+	}
+	
+	/**
+	 * Gets the total number of channels closed because they were stalled
+	 * 
+	 * @return the number of closed channels
+	 */
+	public long getOutboundStallCloses() {
+		long total = 0;
+		for (SelectorHandler<C> h : selectorHandlers) {
+			total += h.getOutboundStallCloses();
+		}
+		return total;
+	}
+	
+	private void resumeInbound() {
+		if (inboundSuspended.compareAndSet(true, false)) {
+			ChannelHandler<C> handler;
+			while ((handler = inboundSuspendedChannels.poll()) != null) {
+				handler.resumeGlobalInbound();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the selector a channel should be moved to, in order to balance the load between selectors.
+	 * 
+	 * @param source the selector currently handling the channel
+	 * @param channelByteRate the byte rate of the channel, in bytes per second
+	 * @return the target selector, or null if the channel should not be moved, which is always the case in SHARDED mode
+	 */
+	public SelectorHandler<C> getMigrationTarget(SelectorHandler<C> source, double channelByteRate) {
+		if (executionMode == ExecutionMode.SHARDED) {
+			return null;
+		}
+		SelectorHandler<C> target = null;
+		for (SelectorHandler<C> h : selectorHandlers) {
+			if (h != source && (target == null || h.getByteRate() < target.getByteRate())) {
+				target = h;
+			}
+		}
+		if (target == null) {
+			return null;
+		}
+		double sourceRate = source.getByteRate();
+		double targetRate = target.getByteRate();
+		if (sourceRate < config.getRebalanceMinByteRate() || sourceRate < targetRate * config.getRebalanceRatio()) {
+			return null;
+		}
+		if (targetRate + channelByteRate >= sourceRate) {
+			return null;
+		}
+		return target;
+	}
+	
+	/**
+	 * Gets the total number of channels moved between selectors
+	 * 
+	 * @return the number of migrations
+	 */
+	public long getMigrations() {
+		long total = 0;
+		for (SelectorHandler<C> h : selectorHandlers) {
+			total += h.getMigrations();
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the total number of channels closed after exceeding an idle timeout
+	 * 
+	 * @return the number of idle evictions
+	 */
+	public long getIdleEvictions() {
+		long total = 0;
+		for (SelectorHandler<C> h : selectorHandlers) {
+			total += h.getIdleEvictions();
+		}
+		return total;
+	}
+	
+	/**
+	 * Gets the total number of selector wakeups requested across all selectors
+	 * 
+	 * @return the number of wakeups requested
+	 */
+	public long getWakeupsRequested() {
+		long total = 0;
+		for (SelectorHandler<C> h : selectorHandlers) {
+			total += h.getWakeupsRequested();
+		}
+		return total;
+	}
+	
+	/**
+	 * Gets the total number of selector wakeups issued across all selectors
+	 * 
+	 * @return the number of wakeups issued
+	 */
+	public long getWakeupsIssued() {
+		long total = 0;
+		for (SelectorHandler<C> h : selectorHandlers) {
+			total += h.getWakeupsIssued();
+		}
+		return total;
+	}
+
 	public Logger getLogger() {
 		return logger;
 	}
 
+	/**
+	 * Gets the executor service.  In SHARDED mode, this is the executor service of the first shard.
+	 * 
+	 * @return
+	 */
 	public ExecutorService getExecutorService() {
-		return pool;
+		return pools[0];
 	}
 
 	public void listen(int port) throws IOException {
@@ -119,16 +671,97 @@ public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManag
 	}
 
 	public void listen(InetSocketAddress addr) throws IOException {
+		listen(addr, null);
+	}
+	
+	/**
+	 * Listens on the given address for incoming connections
+	 * 
+	 * @param addr the address
+	 * @param profile socket options for connections accepted on this address, overriding the default profile
+	 * @throws IOException
+	 */
+	public void listen(InetSocketAddress addr, SocketProfile profile) throws IOException {
 		synchronized (configSync) {
 			if (!running) {
 				return;
 			}
-			AcceptThread<C> t = new AcceptThread<C>(this, addr);
+			AcceptThread<C> t = new AcceptThread<C>(this, addr, getSocketProfile(profile));
 			acceptThreads.add(t);
 			t.start();
 		}
 	}
 	
+	/**
+	 * Listens on the given address using multiple server sockets bound with SO_REUSEPORT.<br>
+	 * <br>
+	 * Each server socket is registered with a selector, so connections are accepted on the selector threads and 
+	 * the kernel spreads incoming connections across the sockets.  If SO_REUSEPORT is not supported, a single 
+	 * server socket is used.
+	 * 
+	 * @param addr the address
+	 * @param acceptors the number of server sockets
+	 * @throws IOException
+	 */
+	public void listen(InetSocketAddress addr, int acceptors) throws IOException {
+		listen(addr, acceptors, null);
+	}
+	
+	/**
+	 * Listens on the given address using multiple server sockets bound with SO_REUSEPORT
+	 * 
+	 * @param addr the address
+	 * @param acceptors the number of server sockets
+	 * @param profile socket options for connections accepted on this address, overriding the default profile
+	 * @throws IOException
+	 */
+	public void listen(InetSocketAddress addr, int acceptors, SocketProfile profile) throws IOException {
+		profile = getSocketProfile(profile);
+		if (acceptors <= 0) {
+			throw new IllegalArgumentException("At least one acceptor is required");
+		}
+		synchronized (configSync) {
+			if (!running) {
+				return;
+			}
+			List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>(acceptors);
+			try {
+				for (int i = 0; i < acceptors; i++) {
+					ServerSocketChannel serverChannel = ServerSocketChannel.open();
+					serverChannels.add(serverChannel);
+					if (SO_REUSEPORT == null || !serverChannel.supportedOptions().contains(SO_REUSEPORT)) {
+						if (i == 0) {
+							getLogger().info("SO_REUSEPORT not supported, using a single acceptor for " + addr);
+							acceptors = 1;
+						} else {
+							throw new IOException("SO_REUSEPORT not supported");
+						}
+					} else {
+						serverChannel.setOption(SO_REUSEPORT, true);
+					}
+					profile.apply(serverChannel);
+					serverChannel.bind(addr, config.getListenBacklog());
+					if (i == 0) {
+						addr = (InetSocketAddress) serverChannel.getLocalAddress();
+					}
+				}
+				for (int i = 0; i < serverChannels.size(); i++) {
+					if (!selectorHandlers[i % selectorHandlers.length].addServerChannel(serverChannels.get(i), profile)) {
+						throw new IOException("SelectorHandler is not running");
+					}
+				}
+			} catch (IOException e) {
+				for (ServerSocketChannel serverChannel : serverChannels) {
+					try {
+						serverChannel.close();
+					} catch (IOException ioe) {
+					}
+				}
+				throw new IOException("Unable to listen on " + addr, e);
+			}
+		}
+	}
+	
 	public void shutdown() {
 		shutdown(0);
 	}
@@ -143,15 +776,27 @@ public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManag
 		for (SelectorHandler<C> h : selectorHandlers) {
 			h.shutdown(timeout);
 		}
-		handlerPool.shutdown();
-		List<Thread> handlerPoolThreads = handlerPool.getThreads();
-		List<Thread> threads = new ArrayList<Thread>(acceptThreads.size() + selectorHandlers.length + handlerPoolThreads.size());
+		List<Thread> threads = new ArrayList<Thread>();
 		threads.addAll(acceptThreads);
-		threads.addAll(handlerPoolThreads);
+		for (StripedExecutor<C> handlerPool : handlerPools) {
+			handlerPool.shutdown();
+			threads.addAll(handlerPool.getThreads());
+		}
 		for (Thread s : selectorHandlers) {
 			threads.add(s);
 		}
 		join(threads, timeout);
+		for (SelectorHandler<C> h : selectorHandlers) {
+			if (h.isAlive()) {
+				return;
+			}
+		}
+		for (ExecutorService pool : pools) {
+			pool.shutdown();
+		}
+		if (frameCompressor != null) {
+			frameCompressor.end();
+		}
 	}
 
 	private void join(List<Thread> threads, long timeout) {
@@ -182,5 +827,20 @@ public class NetworkManagerImpl<C extends Connection<C>> implements NetworkManag
 			}
 		}
 	}
+	
+	private static class ShardThreadFactory implements ThreadFactory {
+		
+		private final int shard;
+		private final AtomicInteger count = new AtomicInteger(1);
+		
+		public ShardThreadFactory(int shard) {
+			this.shard = shard;
+		}
+		
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "Shard " + shard + " Worker " + count.getAndIncrement());
+		}
+		
+	}
 
 }
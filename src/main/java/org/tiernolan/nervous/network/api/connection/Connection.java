@@ -17,6 +17,25 @@ public abstract class Connection<C extends Connection<C>> implements ProtocolCom
 		getNetwork().shutdown();
 	}
 	
+	/**
+	 * Checks if packets can be written without exceeding the outbound high watermark
+	 * 
+	 * @return true if the connection is writable
+	 */
+	public boolean isWritable() {
+		return getNetwork().isWritable();
+	}
+	
+	/**
+	 * Called when the outbound buffer crosses its high watermark, or drops back to its low watermark.  This 
+	 * method may be called by any thread, and calls may race, so implementations should check isWritable() 
+	 * for the current state.
+	 * 
+	 * @param writable true if the connection became writable
+	 */
+	public void writabilityChanged(boolean writable) {
+	}
+	
 	/**
 	 * Gets the Network associated with this connection
 	 */
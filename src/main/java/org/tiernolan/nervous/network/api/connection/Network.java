@@ -1,5 +1,7 @@
 package org.tiernolan.nervous.network.api.connection;
 
+import java.nio.channels.FileChannel;
+
 import org.tiernolan.nervous.network.api.protocol.Packet;
 
 public interface Network<C extends Connection<C>> {
@@ -9,9 +11,42 @@ public interface Network<C extends Connection<C>> {
 	 * @param p
 	 */
 	public void writePacket(Packet<C> p);
+	
+	/**
+	 * Writes a region of a file to the Network.  The region is sent in order with the other packets, and is 
+	 * transferred directly from the file to the channel, without being encoded.  The file channel is not closed 
+	 * once the region has been sent.
+	 * 
+	 * @param file the file
+	 * @param position the position of the region in the file
+	 * @param length the length of the region
+	 */
+	public void writeFile(FileChannel file, long position, long length);
 
 	/**
 	 * Shuts down the channel cleanly
 	 */
 	public void shutdown();
+	
+	/**
+	 * Checks if the outbound buffer is below its high watermark.  Producers should stop writing packets when this 
+	 * returns false, and wait for Connection.writabilityChanged(true).
+	 * 
+	 * @return true if the network is writable
+	 */
+	public boolean isWritable();
+	
+	/**
+	 * Sets the write corking policy for this network.  When the delay is non-zero, written packets are held until 
+	 * the corked bytes reach the threshold, the delay expires or flush() is called.
+	 * 
+	 * @param bytes the byte threshold, or 0 for none
+	 * @param delay the maximum delay in milliseconds, or 0 to disable corking
+	 */
+	public void setWriteCork(int bytes, long delay);
+	
+	/**
+	 * Sends any corked packets immediately
+	 */
+	public void flush();
 }
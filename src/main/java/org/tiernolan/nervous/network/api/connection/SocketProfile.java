@@ -0,0 +1,198 @@
+package org.tiernolan.nervous.network.api.connection;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A set of socket options applied to new channels.  Options which are not set are left at the system default.
+ */
+public class SocketProfile {
+	
+	private Boolean tcpNoDelay;
+	private Integer receiveBufferSize;
+	private Integer sendBufferSize;
+	private Boolean keepAlive;
+	private Integer linger;
+	
+	public SocketProfile() {
+	}
+	
+	public SocketProfile(SocketProfile profile) {
+		this.tcpNoDelay = profile.tcpNoDelay;
+		this.receiveBufferSize = profile.receiveBufferSize;
+		this.sendBufferSize = profile.sendBufferSize;
+		this.keepAlive = profile.keepAlive;
+		this.linger = profile.linger;
+	}
+	
+	/**
+	 * Gets the TCP_NODELAY setting
+	 * 
+	 * @return the setting, or null if not set
+	 */
+	public Boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+	
+	/**
+	 * Sets TCP_NODELAY, which disables Nagle's algorithm
+	 * 
+	 * @param tcpNoDelay the setting, or null to use the default
+	 */
+	public void setTcpNoDelay(Boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+	
+	/**
+	 * Gets the SO_RCVBUF setting
+	 * 
+	 * @return the receive buffer size, or null if not set
+	 */
+	public Integer getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+	
+	/**
+	 * Sets SO_RCVBUF.  This is also applied to server sockets before they are bound, since buffers larger than 
+	 * 64kB must be set before the connection is established.
+	 * 
+	 * @param receiveBufferSize the receive buffer size, or null to use the default
+	 */
+	public void setReceiveBufferSize(Integer receiveBufferSize) {
+		if (receiveBufferSize != null && receiveBufferSize <= 0) {
+			throw new IllegalArgumentException("Receive buffer size must be positive");
+		}
+		this.receiveBufferSize = receiveBufferSize;
+	}
+	
+	/**
+	 * Gets the SO_SNDBUF setting
+	 * 
+	 * @return the send buffer size, or null if not set
+	 */
+	public Integer getSendBufferSize() {
+		return sendBufferSize;
+	}
+	
+	/**
+	 * Sets SO_SNDBUF
+	 * 
+	 * @param sendBufferSize the send buffer size, or null to use the default
+	 */
+	public void setSendBufferSize(Integer sendBufferSize) {
+		if (sendBufferSize != null && sendBufferSize <= 0) {
+			throw new IllegalArgumentException("Send buffer size must be positive");
+		}
+		this.sendBufferSize = sendBufferSize;
+	}
+	
+	/**
+	 * Gets the SO_KEEPALIVE setting
+	 * 
+	 * @return the setting, or null if not set
+	 */
+	public Boolean getKeepAlive() {
+		return keepAlive;
+	}
+	
+	/**
+	 * Sets SO_KEEPALIVE
+	 * 
+	 * @param keepAlive the setting, or null to use the default
+	 */
+	public void setKeepAlive(Boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * Gets the SO_LINGER setting
+	 * 
+	 * @return the linger time in seconds, a negative value if disabled, or null if not set
+	 */
+	public Integer getLinger() {
+		return linger;
+	}
+	
+	/**
+	 * Sets SO_LINGER.  A linger time of zero causes the connection to be reset when it is closed.  The behaviour of 
+	 * a positive linger time on a non-blocking channel is platform specific and not defined by the JDK, so the close 
+	 * may block the thread which closes the channel, which is usually the selector thread.
+	 * 
+	 * @param linger the linger time in seconds, a negative value to disable, or null to use the default
+	 */
+	public void setLinger(Integer linger) {
+		this.linger = linger;
+	}
+	
+	/**
+	 * Creates a new profile with the options from this profile, overridden by any options set in the given profile
+	 * 
+	 * @param override the overriding profile, or null for a copy of this profile
+	 * @return the merged profile
+	 */
+	public SocketProfile merge(SocketProfile override) {
+		SocketProfile merged = new SocketProfile(this);
+		if (override != null) {
+			if (override.tcpNoDelay != null) {
+				merged.tcpNoDelay = override.tcpNoDelay;
+			}
+			if (override.receiveBufferSize != null) {
+				merged.receiveBufferSize = override.receiveBufferSize;
+			}
+			if (override.sendBufferSize != null) {
+				merged.sendBufferSize = override.sendBufferSize;
+			}
+			if (override.keepAlive != null) {
+				merged.keepAlive = override.keepAlive;
+			}
+			if (override.linger != null) {
+				merged.linger = override.linger;
+			}
+		}
+		return merged;
+	}
+	
+	/**
+	 * Applies the profile to a connected socket channel
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void apply(SocketChannel channel) throws IOException {
+		if (tcpNoDelay != null) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+		}
+		if (receiveBufferSize != null) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (sendBufferSize != null) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+		if (keepAlive != null) {
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+		}
+		if (linger != null) {
+			channel.setOption(StandardSocketOptions.SO_LINGER, linger);
+		}
+	}
+	
+	/**
+	 * Applies the profile to a server socket channel.  This should be called before the channel is bound.
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void apply(ServerSocketChannel channel) throws IOException {
+		if (receiveBufferSize != null) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "SocketProfile {tcpNoDelay=" + tcpNoDelay + ", receiveBufferSize=" + receiveBufferSize + ", sendBufferSize=" + sendBufferSize + ", keepAlive=" + keepAlive + ", linger=" + linger + "}";
+	}
+
+}
@@ -0,0 +1,28 @@
+package org.tiernolan.nervous.network.api.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.tiernolan.nervous.network.api.connection.Connection;
+
+/**
+ * A decoder which receives large packet bodies incrementally.<br>
+ * <br>
+ * When a header announces a body larger than the configured chunk size, the body is not buffered.  Instead, 
+ * decodeChunk() is called for each chunk as it arrives, and each returned packet is passed to the handlers in 
+ * order.  All of the packets for one body must have the same stripe id, so that they are handled in order.  
+ * The body size may exceed Protocol.getMaxPacketSize().
+ */
+public interface ChunkedDecoder<P extends Packet<C>, C extends Connection<C>> extends Decoder<P, C> {
+
+	/**
+	 * Decodes a chunk of a packet body.  The chunk buffer is only valid until this method returns.
+	 * 
+	 * @param header a ByteBuffer containing the header
+	 * @param chunk a ByteBuffer containing the chunk
+	 * @param offset the offset of the chunk within the body
+	 * @param last true if this is the final chunk of the body
+	 * @return the decoded packet, or null on failure
+	 */
+	public Packet<C> decodeChunk(ByteBuffer header, ByteBuffer chunk, long offset, boolean last);
+
+}
@@ -0,0 +1,48 @@
+package org.tiernolan.nervous.network.api.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Protocols may implement this interface to compress packet bodies on the wire.<br>
+ * <br>
+ * Encoded bodies of at least the threshold size are deflated using the preset dictionary.  The compressed body is
+ * prefixed with its uncompressed size, and the protocol marks the frame as compressed in its header.  A body is
+ * sent uncompressed if compression does not make it smaller.  Compressed bodies are inflated before they are passed
+ * to the decoder, so decoders only see uncompressed bodies.<br>
+ * <br>
+ * Streaming encoders, file transfers and broadcast packets are not compressed.
+ */
+public interface CompressionProvider {
+
+	/**
+	 * Gets the preset dictionary.  Both ends of a connection must use the same dictionary.
+	 *
+	 * @return the dictionary, or null for no dictionary
+	 */
+	public byte[] getCompressionDictionary();
+
+	/**
+	 * Gets the minimum body size for compression
+	 *
+	 * @return the size in bytes
+	 */
+	public int getCompressionThreshold();
+
+	/**
+	 * Checks if the body following a header is compressed
+	 *
+	 * @param header a ByteBuffer containing the packet header
+	 * @return true if the body is compressed
+	 */
+	public boolean isCompressed(ByteBuffer header);
+
+	/**
+	 * Updates a packet header when its body is compressed or inflated.
+	 *
+	 * @param header a ByteBuffer containing the packet header
+	 * @param compressed true if the body is now compressed
+	 * @param bodySize the new body size
+	 */
+	public void setCompressed(ByteBuffer header, boolean compressed, int bodySize);
+
+}
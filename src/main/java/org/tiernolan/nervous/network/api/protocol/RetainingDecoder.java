@@ -0,0 +1,25 @@
+package org.tiernolan.nervous.network.api.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.tiernolan.nervous.network.api.connection.Connection;
+import org.tiernolan.nervous.network.bufferpool.SharedBuffer;
+
+/**
+ * A decoder which can keep the packet body without copying it.<br>
+ * <br>
+ * The body is only valid until decode() returns, unless the decoder calls body.retain().  A retained body 
+ * must be released, normally by the handler, once the packet has been handled.
+ */
+public interface RetainingDecoder<P extends Packet<C>, C extends Connection<C>> extends Decoder<P, C> {
+
+	/**
+	 * Decodes a packet from the packet header and a reference counted body
+	 * 
+	 * @param header a ByteBuffer containing the header
+	 * @param body a SharedBuffer containing the body
+	 * @return the decoded packet, or null on failure
+	 */
+	public Packet<C> decode(ByteBuffer header, SharedBuffer body);
+
+}
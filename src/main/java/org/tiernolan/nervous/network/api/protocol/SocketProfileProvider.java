@@ -0,0 +1,17 @@
+package org.tiernolan.nervous.network.api.protocol;
+
+import org.tiernolan.nervous.network.api.connection.SocketProfile;
+
+/**
+ * Protocols may implement this interface to supply the socket options used by their channels
+ */
+public interface SocketProfileProvider {
+
+	/**
+	 * Gets the socket options for channels using this protocol
+	 * 
+	 * @return the socket profile
+	 */
+	public SocketProfile getSocketProfile();
+	
+}
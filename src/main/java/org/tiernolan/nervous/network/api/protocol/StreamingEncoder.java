@@ -0,0 +1,33 @@
+package org.tiernolan.nervous.network.api.protocol;
+
+import java.nio.ByteBuffer;
+
+import org.tiernolan.nervous.network.api.connection.Connection;
+import org.tiernolan.nervous.network.bufferpool.BufferChain;
+
+/**
+ * An encoder for packets whose size is not known before they are encoded.<br>
+ * <br>
+ * The body is written into a chain of pool buffers, which grows as needed, and the header is written once the
+ * body size is known.  The write path does not call encode() or getPacketBodySize() for streaming encoders.
+ */
+public interface StreamingEncoder<P extends Packet<C>, C extends Connection<C>> extends Encoder<P, C> {
+
+	/**
+	 * Encodes the packet body
+	 *
+	 * @param packet the packet
+	 * @param out the chain to write the body to
+	 */
+	public void encodeBody(P packet, BufferChain out);
+
+	/**
+	 * Encodes the packet header, after the body has been encoded
+	 *
+	 * @param packet the packet
+	 * @param bodySize the size of the encoded body
+	 * @param header a ByteBuffer for the header
+	 */
+	public void encodeHeader(P packet, int bodySize, ByteBuffer header);
+
+}
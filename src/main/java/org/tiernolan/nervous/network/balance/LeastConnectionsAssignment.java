@@ -0,0 +1,24 @@
+package org.tiernolan.nervous.network.balance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LeastConnectionsAssignment implements SelectorAssignment {
+	
+	private final AtomicInteger counter = new AtomicInteger(0);
+
+	public int select(SelectorLoad[] selectors) {
+		int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % selectors.length;
+		int best = start;
+		int bestCount = Integer.MAX_VALUE;
+		for (int i = 0; i < selectors.length; i++) {
+			int index = (start + i) % selectors.length;
+			int count = selectors[index].getConnectionCount();
+			if (count < bestCount) {
+				best = index;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+}
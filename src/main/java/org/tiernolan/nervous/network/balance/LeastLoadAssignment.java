@@ -0,0 +1,50 @@
+package org.tiernolan.nervous.network.balance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LeastLoadAssignment implements SelectorAssignment {
+	
+	private final AtomicInteger counter = new AtomicInteger(0);
+	private final LoadMetric metric;
+	
+	public LeastLoadAssignment() {
+		this(LoadMetric.EVENTS);
+	}
+	
+	public LeastLoadAssignment(LoadMetric metric) {
+		if (metric == null) {
+			throw new NullPointerException();
+		}
+		this.metric = metric;
+	}
+
+	public int select(SelectorLoad[] selectors) {
+		int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % selectors.length;
+		int best = start;
+		double bestLoad = Double.MAX_VALUE;
+		int bestCount = Integer.MAX_VALUE;
+		for (int i = 0; i < selectors.length; i++) {
+			int index = (start + i) % selectors.length;
+			double load = metric == LoadMetric.BYTES ? selectors[index].getByteRate() : selectors[index].getEventRate();
+			int count = selectors[index].getConnectionCount();
+			if (load < bestLoad || (load == bestLoad && count < bestCount)) {
+				best = index;
+				bestLoad = load;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+	
+	public static enum LoadMetric {
+		/**
+		 * Selector events per second
+		 */
+		EVENTS,
+		/**
+		 * Bytes read and written per second
+		 */
+		BYTES;
+	}
+
+}
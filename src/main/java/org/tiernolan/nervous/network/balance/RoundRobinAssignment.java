@@ -0,0 +1,13 @@
+package org.tiernolan.nervous.network.balance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoundRobinAssignment implements SelectorAssignment {
+	
+	private final AtomicInteger counter = new AtomicInteger(0);
+
+	public int select(SelectorLoad[] selectors) {
+		return (counter.getAndIncrement() & Integer.MAX_VALUE) % selectors.length;
+	}
+
+}
@@ -0,0 +1,13 @@
+package org.tiernolan.nervous.network.balance;
+
+public interface SelectorAssignment {
+	
+	/**
+	 * Selects the selector that a new connection should be assigned to
+	 * 
+	 * @param selectors the selectors
+	 * @return the index of the selected selector
+	 */
+	public int select(SelectorLoad[] selectors);
+
+}
@@ -0,0 +1,26 @@
+package org.tiernolan.nervous.network.balance;
+
+public interface SelectorLoad {
+	
+	/**
+	 * Gets the number of connections assigned to the selector, including connections waiting to be registered
+	 * 
+	 * @return the number of connections
+	 */
+	public int getConnectionCount();
+	
+	/**
+	 * Gets the recent rate of selector events, in events per second
+	 * 
+	 * @return the event rate
+	 */
+	public double getEventRate();
+	
+	/**
+	 * Gets the recent rate of bytes read and written by the selector's connections, in bytes per second
+	 * 
+	 * @return the byte rate
+	 */
+	public double getByteRate();
+
+}
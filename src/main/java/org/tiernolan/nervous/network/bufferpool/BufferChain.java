@@ -0,0 +1,147 @@
+package org.tiernolan.nervous.network.bufferpool;
+
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable output made up of a chain of pool buffers.<br>
+ * <br>
+ * Data is written with relative puts to the buffer returned by ensure(), or with the put() methods, which split
+ * the data across buffers as needed.  Once complete, the chain is flipped and the buffers are sent with a
+ * gathering write.
+ */
+public class BufferChain {
+
+	private final ByteBufferPool pool;
+	private final int linkSize;
+	private final List<Reference<ByteBuffer>> refs = new ArrayList<Reference<ByteBuffer>>();
+	private final List<ByteBuffer> links = new ArrayList<ByteBuffer>();
+	private ByteBuffer current;
+	private int filled;
+	private boolean flipped;
+
+	/**
+	 * Creates an empty buffer chain
+	 *
+	 * @param pool the pool to take the buffers from
+	 * @param linkSize the size of each buffer in the chain
+	 */
+	public BufferChain(ByteBufferPool pool, int linkSize) {
+		if (linkSize <= 0 || linkSize > pool.getMaxSize()) {
+			throw new IllegalArgumentException("Link size must be between 1 and " + pool.getMaxSize());
+		}
+		this.pool = pool;
+		this.linkSize = linkSize;
+	}
+
+	/**
+	 * Gets a buffer with at least the given number of bytes remaining.  A new buffer is added to the chain if the
+	 * current buffer does not have enough space.
+	 *
+	 * @param bytes the number of bytes, at most the link size
+	 * @return the buffer
+	 */
+	public ByteBuffer ensure(int bytes) {
+		if (flipped) {
+			throw new IllegalStateException("Buffer chain has already been flipped");
+		}
+		if (bytes > linkSize) {
+			throw new IllegalArgumentException("Cannot ensure " + bytes + " bytes with a link size of " + linkSize);
+		}
+		if (current == null || current.remaining() < bytes) {
+			if (current != null) {
+				filled += current.position();
+			}
+			Reference<ByteBuffer> ref = pool.get(linkSize);
+			refs.add(ref);
+			current = ref.get();
+			links.add(current);
+		}
+		return current;
+	}
+
+	/**
+	 * Reserves space in the chain, so that it can be written later, for example a header containing the length.
+	 *
+	 * @param bytes the number of bytes, at most the link size
+	 * @return a buffer covering the reserved space
+	 */
+	public ByteBuffer reserve(int bytes) {
+		ByteBuffer buf = ensure(bytes);
+		ByteBuffer reserved = buf.duplicate();
+		reserved.limit(buf.position() + bytes);
+		buf.position(buf.position() + bytes);
+		return reserved.slice();
+	}
+
+	public void put(ByteBuffer src) {
+		while (src.hasRemaining()) {
+			ByteBuffer buf = ensure(1);
+			int length = Math.min(buf.remaining(), src.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(src.position() + length);
+			buf.put(part);
+			src.position(src.position() + length);
+		}
+	}
+
+	public void put(byte[] src, int offset, int length) {
+		while (length > 0) {
+			ByteBuffer buf = ensure(1);
+			int part = Math.min(buf.remaining(), length);
+			buf.put(src, offset, part);
+			offset += part;
+			length -= part;
+		}
+	}
+
+	public void put(byte[] src) {
+		put(src, 0, src.length);
+	}
+
+	/**
+	 * Gets the number of bytes written to the chain, including reserved space
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		if (flipped) {
+			int size = 0;
+			for (ByteBuffer link : links) {
+				size += link.limit();
+			}
+			return size;
+		}
+		return filled + (current == null ? 0 : current.position());
+	}
+
+	/**
+	 * Flips all of the buffers in the chain, so they are ready to be written.  No more data may be added.
+	 *
+	 * @return the buffers
+	 */
+	public ByteBuffer[] flip() {
+		if (!flipped) {
+			for (ByteBuffer link : links) {
+				link.flip();
+			}
+			flipped = true;
+		}
+		return links.toArray(new ByteBuffer[links.size()]);
+	}
+
+	/**
+	 * Returns all of the buffers in the chain to the pool
+	 */
+	public void release() {
+		for (Reference<ByteBuffer> ref : refs) {
+			pool.put(ref);
+		}
+		refs.clear();
+		links.clear();
+		current = null;
+	}
+
+}
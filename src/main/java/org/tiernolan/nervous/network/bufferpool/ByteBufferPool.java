@@ -31,6 +31,15 @@ public class ByteBufferPool {
 	    }
 	}
 	
+	/**
+	 * Gets the size of the largest buffer this pool can supply
+	 * 
+	 * @return the maximum size
+	 */
+	public int getMaxSize() {
+		return 32 << pools.length;
+	}
+	
 	public Reference<ByteBuffer> get(int size) {
 		ThreadLocalByteBufferPool pool = getThreadLocalByteBufferPool(size);
 		ByteBufferQueue queue = pool.get();
@@ -0,0 +1,125 @@
+package org.tiernolan.nervous.network.bufferpool;
+
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted pool buffer.<br>
+ * <br>
+ * The buffer starts with a count of one, held by its creator.  Each user calls retain() before using the buffer
+ * and release() once it is finished.  The buffer is returned to the pool when the count reaches zero, so the
+ * data must not be modified after it has been shared.  Slices share the reference count of the buffer they
+ * were taken from.
+ */
+public class SharedBuffer {
+
+	private final ByteBufferPool pool;
+	private final Reference<ByteBuffer> ref;
+	private final ByteBuffer buf;
+	private final AtomicInteger refCount;
+
+	/**
+	 * Creates a shared buffer.  The buffer should be flipped, so that it is ready to be read.
+	 *
+	 * @param pool the pool to return the buffer to
+	 * @param ref the reference to the buffer
+	 */
+	public SharedBuffer(ByteBufferPool pool, Reference<ByteBuffer> ref) {
+		this(pool, ref, ref.get(), new AtomicInteger(1));
+	}
+	
+	/**
+	 * Creates a shared buffer which is not returned to a pool
+	 * 
+	 * @param buf the buffer
+	 */
+	public SharedBuffer(ByteBuffer buf) {
+		this(null, null, buf, new AtomicInteger(1));
+	}
+	
+	private SharedBuffer(ByteBufferPool pool, Reference<ByteBuffer> ref, ByteBuffer buf, AtomicInteger refCount) {
+		this.pool = pool;
+		this.ref = ref;
+		this.buf = buf;
+		this.refCount = refCount;
+	}
+	
+	/**
+	 * Gets a slice of the buffer which shares this buffer's reference count
+	 * 
+	 * @param position the absolute position of the slice
+	 * @param length the length of the slice
+	 * @return the slice
+	 */
+	public SharedBuffer slice(int position, int length) {
+		ByteBuffer view = buf.duplicate();
+		view.limit(position + length);
+		view.position(position);
+		return new SharedBuffer(pool, ref, view.slice(), refCount);
+	}
+
+	/**
+	 * Gets a read-only duplicate of the buffer, with its own position and limit
+	 *
+	 * @return the duplicate
+	 */
+	public ByteBuffer duplicate() {
+		return buf.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets the number of bytes in the buffer
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return buf.remaining();
+	}
+
+	/**
+	 * Increments the reference count
+	 *
+	 * @throws IllegalStateException if the buffer has already been released
+	 */
+	public void retain() {
+		while (true) {
+			int count = refCount.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Shared buffer has already been released");
+			}
+			if (refCount.compareAndSet(count, count + 1)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decrements the reference count, and returns the buffer to the pool when it reaches zero
+	 *
+	 * @return true if the buffer was returned to the pool
+	 */
+	public boolean release() {
+		int count = refCount.decrementAndGet();
+		if (count < 0) {
+			throw new IllegalStateException("Shared buffer released too many times");
+		}
+		if (count == 0) {
+			if (pool != null) {
+				pool.put(ref);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the current reference count
+	 *
+	 * @return the count
+	 */
+	public int refCount() {
+		return refCount.get();
+	}
+
+}
@@ -1,5 +1,6 @@
 package org.tiernolan.nervous.network.connection;
 
+import org.tiernolan.nervous.network.timer.Timeout;
 
 public interface ChannelControl {
 
@@ -22,4 +23,30 @@ public interface ChannelControl {
 	 */
 	public void close();
 	
+	/**
+	 * Requests a call to Serdes.flush() after the given delay, in milliseconds.
+	 * 
+	 * This method may be called by any thread
+	 * 
+	 * @param delay
+	 * @return the timeout, which may be cancelled if the flush happens early
+	 */
+	public Timeout scheduleFlush(long delay);
+	
+	/**
+	 * Called when a decoded packet is about to be added to the handler queue.
+	 * 
+	 * This method should only be called by the Serdes.read(ReadableByteChannel channel) method
+	 * 
+	 * @return false if the inbound queue is full and reading should stop
+	 */
+	public boolean inboundQueued();
+	
+	/**
+	 * Called after a queued packet has been handled.
+	 * 
+	 * This method may be called by any thread
+	 */
+	public void inboundHandled();
+	
 }
@@ -1,73 +1,85 @@
 package org.tiernolan.nervous.network.connection;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.tiernolan.nervous.network.NetworkConfig;
+import org.tiernolan.nervous.network.NetworkConfig.TlsMode;
+import org.tiernolan.nervous.network.NetworkManagerImpl;
 import org.tiernolan.nervous.network.api.NetworkManager;
 import org.tiernolan.nervous.network.api.connection.Connection;
+import org.tiernolan.nervous.network.bufferpool.SharedBuffer;
 import org.tiernolan.nervous.network.queue.PacketWrapper;
 import org.tiernolan.nervous.network.queue.StripedQueue;
+import org.tiernolan.nervous.network.timer.Timeout;
 
 public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 	
 	private final static AtomicInteger hashCount = new AtomicInteger(0);
 	
-	@SuppressWarnings("unused")
 	private final NetworkManager<C> manager;
 	private final Serdes<C> serdes;
-	private final SelectorHandler<C> selectorHandler;
+	private volatile SelectorHandler<C> selectorHandler;
 	private final SocketChannel channel;
+	private final TlsChannel tls;
+	private final ByteChannel io;
 	private final int hash;
 	
-	private final SelectionKey key;
+	private volatile SelectionKey key;
 	private final AtomicBoolean writePending = new AtomicBoolean(false);
 	private final AtomicBoolean closePending = new AtomicBoolean(false);
 	private final AtomicBoolean syncPending = new AtomicBoolean(false);
+	private final AtomicBoolean opsQueued = new AtomicBoolean(false);
 	private final AtomicReference<HandlerState> inProgress = new AtomicReference<HandlerState>(HandlerState.IDLE);
 	
+	private final AtomicInteger inboundPackets = new AtomicInteger(0);
+	private final AtomicBoolean inboundSuspended = new AtomicBoolean(false);
+	private final AtomicBoolean globalInboundSuspended = new AtomicBoolean(false);
+	
 	private boolean write = false;
+	private volatile boolean inputClosed = false;
+	private volatile int appliedOps = SelectionKey.OP_READ;
+	private volatile boolean opsDeferred = false;
+	
+	private volatile long lastRead;
+	private volatile long lastWrite;
+	private volatile long readIdleTimeout;
+	private volatile long writeIdleTimeout;
+	private volatile long allIdleTimeout;
+	
+	private volatile long bytes;
+	private long lastSampleBytes;
 	
 	private final Runnable readRunnable;
 	private final Runnable writeRunnable;
+	private final Runnable flushRunnable;
 	
 	public ChannelHandler(final NetworkManager<C> manager, final SocketChannel channel, final SelectorHandler<C> selectorHandler, StripedQueue<PacketWrapper<C>> queue) throws IOException {
 		readRunnable = new Runnable() {
 			public void run() {
-				try {
-					serdes.read(channel);
-				} catch (IOException e) {
-					close();
-				} catch (Throwable t) {
-					manager.getLogger().info("Channel read threw " + t);
-					close();
-				} finally {
-					if (!inProgress.compareAndSet(HandlerState.RUNNING, HandlerState.IDLE)) {
-						throw new IllegalStateException("Channel Handler was not in RUNNING state");
-					}
-					restoreOps();
-				}
+				read(0);
 			}
 		};
 		writeRunnable = new Runnable() {
 			public void run() {
-				try {
-					serdes.write(channel);
-				} catch (IOException e) {
-					close();
-				} catch (Throwable t) {
-					manager.getLogger().info("Channel write threw " + t);
-					close();
-				} finally {
-					if (!inProgress.compareAndSet(HandlerState.RUNNING, HandlerState.IDLE)) {
-						throw new IllegalStateException("Channel Handler was not in RUNNING state");
-					}
-					restoreOps();
-				}
+				write(false);
+			}
+		};
+		flushRunnable = new Runnable() {
+			public void run() {
+				serdes.flush();
 			}
 		};
 		this.serdes = new SerdesImpl<C>(manager, this, queue);
@@ -75,6 +87,20 @@ public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 		this.manager = manager;
 		this.channel = channel;
 		this.selectorHandler = selectorHandler;
+		this.lastRead = this.lastWrite = System.nanoTime();
+		TlsChannel tls = null;
+		if (manager instanceof NetworkManagerImpl) {
+			NetworkConfig config = ((NetworkManagerImpl<C>) manager).getConfig();
+			setIdleTimeouts(config.getReadIdleTimeout(), config.getWriteIdleTimeout(), config.getAllIdleTimeout());
+			try {
+				tls = createTlsChannel((NetworkManagerImpl<C>) manager, channel);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+		this.tls = tls;
+		this.io = tls == null ? channel : tls;
 		try {
 			channel.configureBlocking(false);
 			this.key = selectorHandler.register(channel, this);
@@ -85,6 +111,33 @@ public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 			close();
 			throw e;
 		}
+		if (tls != null && tls.needsWrite()) {
+			setWriteRequest();
+		}
+	}
+	
+	private TlsChannel createTlsChannel(NetworkManagerImpl<C> manager, SocketChannel channel) throws IOException {
+		NetworkConfig config = manager.getConfig();
+		TlsMode mode = config.getTlsMode();
+		SSLContext context = config.getTlsContext();
+		if (mode == TlsMode.NONE || context == null) {
+			return null;
+		}
+		SSLEngine engine;
+		InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+		if (mode == TlsMode.CLIENT && remote != null) {
+			engine = context.createSSLEngine(remote.getHostString(), remote.getPort());
+		} else {
+			engine = context.createSSLEngine();
+		}
+		engine.setUseClientMode(mode == TlsMode.CLIENT);
+		// Delegated tasks run on the executor of the channel's current selector, so they stay within its shard
+		Executor executor = new Executor() {
+			public void execute(Runnable task) {
+				selectorHandler.execute(task);
+			}
+		};
+		return new TlsChannel(channel, engine, manager.getTlsBufferPool(), executor, this);
 	}
 	
 	public void clearWriteRequest() {
@@ -93,17 +146,28 @@ public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 
 	public void setWriteRequest() {
 		if (writePending.compareAndSet(false, true)) {
-			if (inProgress.compareAndSet(HandlerState.IDLE, HandlerState.WRITE_PENDING)) {
+			if (isDirectWrite() && inProgress.compareAndSet(HandlerState.IDLE, HandlerState.RUNNING)) {
+				writePending.set(false);
+				write = true;
+				write(true);
+			} else if (inProgress.compareAndSet(HandlerState.IDLE, HandlerState.WRITE_PENDING)) {
 				queueForSync();
 			}
 		}
 	}
 	
+	private boolean isDirectWrite() {
+		return key != null && manager instanceof NetworkManagerImpl && ((NetworkManagerImpl<C>) manager).getConfig().isDirectWrite();
+	}
+	
+	public Timeout scheduleFlush(long delay) {
+		return selectorHandler.schedule(flushRunnable, delay);
+	}
+	
 	public void shutdown(long timeout) {
 		serdes.shutdown();
 		if (timeout > 0) {
-			selectorHandler.getTimer().schedule(new TimerTask() {
-				@Override
+			selectorHandler.schedule(new Runnable() {
 				public void run() {
 					asyncClose();
 				}
@@ -111,10 +175,51 @@ public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 		}
 	}
 	
-	public void asyncClose() {
+	/**
+	 * Sets the idle timeouts for this channel, in milliseconds.  A timeout of zero disables the check.
+	 * 
+	 * @param read the maximum time without any bytes being read
+	 * @param write the maximum time without any bytes being written
+	 * @param all the maximum time without any bytes being read or written
+	 */
+	public void setIdleTimeouts(long read, long write, long all) {
+		this.readIdleTimeout = TimeUnit.MILLISECONDS.toNanos(read);
+		this.writeIdleTimeout = TimeUnit.MILLISECONDS.toNanos(write);
+		this.allIdleTimeout = TimeUnit.MILLISECONDS.toNanos(all);
+	}
+	
+	/**
+	 * Checks if the channel has exceeded any of its idle timeouts
+	 * 
+	 * @param now the current System.nanoTime()
+	 * @return true if the channel has been idle for too long
+	 */
+	public boolean isIdle(long now) {
+		long readIdle = now - lastRead;
+		long writeIdle = now - lastWrite;
+		if (readIdleTimeout > 0 && readIdle > readIdleTimeout) {
+			return true;
+		}
+		if (writeIdleTimeout > 0 && writeIdle > writeIdleTimeout) {
+			return true;
+		}
+		if (allIdleTimeout > 0 && readIdle > allIdleTimeout && writeIdle > allIdleTimeout) {
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Closes the channel on the selector thread
+	 * 
+	 * @return false if a close was already pending
+	 */
+	public boolean asyncClose() {
 		if (closePending.compareAndSet(false, true)) {
 			queueForSync();
+			return true;
 		}
+		return false;
 	}
 	
 	public void close() {
@@ -122,11 +227,15 @@ public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 			if (key != null) {
 				key.cancel();
 			}
+			if (tls != null) {
+				tls.close();
+			}
 			try {
 				channel.close();
 			} catch (IOException e) {
 			}
 		} finally {
+			serdes.closed();
 			selectorHandler.notifyClosed(this);
 		}
 
@@ -151,31 +260,299 @@ public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 	}
 
 	private void restoreOps() {
+		selectorHandler.updateOps(this);
+	}
+	
+	public boolean inboundQueued() {
+		boolean read = true;
+		int count = inboundPackets.incrementAndGet();
+		if (manager instanceof NetworkManagerImpl) {
+			NetworkManagerImpl<C> managerImpl = (NetworkManagerImpl<C>) manager;
+			int high = managerImpl.getConfig().getInboundHighWatermark();
+			if (high > 0 && count >= high) {
+				if (inboundSuspended.compareAndSet(false, true) && inboundPackets.get() <= managerImpl.getConfig().getInboundLowWatermark()) {
+					resumeInbound(inboundSuspended);
+				}
+				read = !inboundSuspended.get();
+			}
+			if (!managerImpl.inboundQueued()) {
+				if (globalInboundSuspended.compareAndSet(false, true) && !managerImpl.suspendInbound(this)) {
+					resumeInbound(globalInboundSuspended);
+				}
+				read &= !globalInboundSuspended.get();
+			}
+		}
+		return read;
+	}
+	
+	public void inboundHandled() {
+		int count = inboundPackets.decrementAndGet();
+		if (manager instanceof NetworkManagerImpl) {
+			NetworkManagerImpl<C> managerImpl = (NetworkManagerImpl<C>) manager;
+			if (count <= managerImpl.getConfig().getInboundLowWatermark()) {
+				resumeInbound(inboundSuspended);
+			}
+			managerImpl.inboundHandled();
+		}
+	}
+	
+	/**
+	 * Gets the number of reads on this channel which returned early because the read budget was used up
+	 * 
+	 * @return the number of budget hits
+	 */
+	public long getReadBudgetHits() {
+		return serdes.getReadBudgetHits();
+	}
+	
+	/**
+	 * Resumes reading after the global inbound packet count drops to the low watermark
+	 */
+	public void resumeGlobalInbound() {
+		resumeInbound(globalInboundSuspended);
+	}
+	
+	private void resumeInbound(AtomicBoolean suspended) {
+		if (suspended.compareAndSet(true, false)) {
+			restoreOps();
+		}
+	}
+	
+	/**
+	 * Checks if reading is suspended because too many decoded packets are waiting to be handled
+	 * 
+	 * @return true if reading is suspended
+	 */
+	public boolean isInboundSuspended() {
+		return inboundSuspended.get() || globalInboundSuspended.get();
+	}
+	
+	/**
+	 * Marks the interest ops update as queued.
+	 * 
+	 * @return false if an update was already queued
+	 */
+	protected boolean setOpsQueued() {
+		return opsQueued.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Applies the interest ops for the current handler state.  This method should only be called by the selector thread.
+	 */
+	protected void applyOps() {
+		opsQueued.set(false);
+		opsDeferred = true;
+		HandlerState state = inProgress.get();
+		if (state == HandlerState.RUNNING || state == HandlerState.MIGRATING || !key.isValid()) {
+			return;
+		}
+		opsDeferred = false;
 		if (writePending.compareAndSet(true, false)) {
 			write = true;
 		}
-		if (write) {
-			selectorHandler.setReadWrite(key);
-		} else {
-			selectorHandler.setReadOnly(key);
+		int ops = (inputClosed || isInboundSuspended()) ? 0 : SelectionKey.OP_READ;
+		if (ops != 0 && (serdes.hasBufferedFrame() || (tls != null && tls.hasBufferedData())) && inProgress.compareAndSet(state, HandlerState.RUNNING)) {
+			try {
+				key.interestOps(0);
+			} catch (CancelledKeyException e) {
+			}
+			appliedOps = 0;
+			selectorHandler.execute(readRunnable);
+			return;
+		}
+		if ((write && (tls == null || !tls.isWriteBlocked())) || (tls != null && tls.needsWrite())) {
+			ops |= SelectionKey.OP_WRITE;
 		}
+		try {
+			key.interestOps(ops);
+		} catch (CancelledKeyException e) {
+		}
+		appliedOps = ops;
 	}
 
+	/**
+	 * Gets the read task and marks the handler as running.  This method should only be called by the selector thread.
+	 * 
+	 * @return the task, or null if a direct write is in progress
+	 */
 	public Runnable getReadRunnable() {
-		setInProgress();
+		if (!setInProgress()) {
+			return null;
+		}
 		return readRunnable;
 	}
 	
+	/**
+	 * Reads from the channel on the calling thread.  This method should only be called by the selector thread.
+	 * 
+	 * @param byteLimit the maximum number of bytes to read, in addition to the configured read budget
+	 * @return the number of bytes read
+	 */
+	public int readInline(int byteLimit) {
+		if (!setInProgress()) {
+			return 0;
+		}
+		return read(byteLimit);
+	}
+	
+	private int read(int byteLimit) {
+		int read = 0;
+		try {
+			read = serdes.read(io, byteLimit);
+			if (read > 0) {
+				lastRead = System.nanoTime();
+				bytes += read;
+				selectorHandler.addBytes(read);
+			} else if (read < 0) {
+				inputClosed = true;
+				serdes.shutdown();
+			}
+		} catch (IOException e) {
+			close();
+		} catch (Throwable t) {
+			manager.getLogger().info("Channel read threw " + t);
+			close();
+		} finally {
+			if (!inProgress.compareAndSet(HandlerState.RUNNING, HandlerState.IDLE)) {
+				throw new IllegalStateException("Channel Handler was not in RUNNING state");
+			}
+			restoreOps();
+		}
+		return read;
+	}
+	
+	/**
+	 * Writes to the channel.  The interest ops are not changed by a direct write, so they are only restored if 
+	 * data is left to write, a write was requested during the write or an update was deferred until the handler 
+	 * was idle.  Otherwise, every direct write would wake up the selector.
+	 * 
+	 * @param direct true if this is a direct write on the calling thread
+	 * @return the number of bytes written
+	 */
+	private int write(boolean direct) {
+		int written = 0;
+		try {
+			if (tls == null || tls.progress()) {
+				written = serdes.write(io);
+			}
+			if (written > 0) {
+				lastWrite = System.nanoTime();
+				bytes += written;
+				selectorHandler.addBytes(written);
+			}
+		} catch (IOException e) {
+			close();
+		} catch (Throwable t) {
+			manager.getLogger().info("Channel write threw " + t);
+			close();
+		} finally {
+			if (!inProgress.compareAndSet(HandlerState.RUNNING, HandlerState.IDLE)) {
+				throw new IllegalStateException("Channel Handler was not in RUNNING state");
+			}
+			if (!direct || write || writePending.get() || opsDeferred || tls != null || (appliedOps & SelectionKey.OP_WRITE) != 0) {
+				restoreOps();
+			}
+		}
+		return written;
+	}
+	
+	/**
+	 * Gets the write task and marks the handler as running.  This method should only be called by the selector thread.
+	 * 
+	 * @return the task, or null if a direct write is in progress
+	 */
 	public Runnable getWriteRunnable() {
-		setInProgress();
+		if (!setInProgress()) {
+			return null;
+		}
 		return writeRunnable;
 	}
 	
-	private void setInProgress() {
-		if (!inProgress.compareAndSet(HandlerState.IDLE, HandlerState.RUNNING) && !inProgress.compareAndSet(HandlerState.WRITE_PENDING, HandlerState.RUNNING)) {
-			throw new IllegalStateException("Channel Handler was not in IDLE or WRITE_PENDING state");
+	/**
+	 * Marks the handler as running.  If a direct write is already running, the interest ops are cleared and are 
+	 * restored once the write completes.
+	 * 
+	 * @return false if a direct write is in progress
+	 */
+	private boolean setInProgress() {
+		opsDeferred = true;
+		while (true) {
+			HandlerState state = inProgress.get();
+			if (state == HandlerState.IDLE || state == HandlerState.WRITE_PENDING) {
+				if (inProgress.compareAndSet(state, HandlerState.RUNNING)) {
+					key.interestOps(0);
+					return true;
+				}
+			} else if (state == HandlerState.RUNNING) {
+				key.interestOps(0);
+				return false;
+			} else {
+				throw new IllegalStateException("Channel Handler was not in IDLE or WRITE_PENDING state");
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of bytes read or written since the previous call.  This method should only be called by the 
+	 * selector thread.
+	 * 
+	 * @return the number of bytes
+	 */
+	protected long sampleBytes() {
+		long total = bytes;
+		long delta = total - lastSampleBytes;
+		lastSampleBytes = total;
+		return delta;
+	}
+	
+	/**
+	 * Starts moving this handler to another selector.  The handler must be idle, so no read or write is in progress, 
+	 * and its key with the current selector is cancelled.  This method should only be called by the current 
+	 * selector thread.
+	 * 
+	 * @return false if the handler was not idle
+	 */
+	protected boolean startMigration() {
+		if (!inProgress.compareAndSet(HandlerState.IDLE, HandlerState.MIGRATING)) {
+			return false;
+		}
+		key.cancel();
+		return true;
+	}
+	
+	/**
+	 * Completes the move to a new selector.  Write requests and closes made during the move are applied 
+	 * once the handler is idle again.  This method should only be called by the new selector thread.
+	 * 
+	 * @param selectorHandler the new selector handler
+	 * @param key the key with the new selector, or null if the channel could not be registered
+	 */
+	protected void completeMigration(SelectorHandler<C> selectorHandler, SelectionKey key) {
+		if (key != null) {
+			this.key = key;
+		}
+		this.selectorHandler = selectorHandler;
+		if (!inProgress.compareAndSet(HandlerState.MIGRATING, HandlerState.IDLE)) {
+			throw new IllegalStateException("Channel Handler was not in MIGRATING state");
 		}
-		key.interestOps(0);
+		if (key == null || closePending.get() || !channel.isOpen()) {
+			close();
+		} else {
+			applyOps();
+		}
+	}
+	
+	/**
+	 * Writes an already encoded packet to the channel
+	 * 
+	 * @param buffer the shared buffer
+	 */
+	public void writeShared(SharedBuffer buffer) {
+		serdes.writeShared(buffer);
+	}
+	
+	protected SocketChannel getChannel() {
+		return channel;
 	}
 	
 	protected Serdes<C> getSerdes() {
@@ -193,7 +570,7 @@ public class ChannelHandler<C extends Connection<C>> implements ChannelControl {
 	}
 	
 	private static enum HandlerState {
-		IDLE, WRITE_PENDING, RUNNING;
+		IDLE, WRITE_PENDING, RUNNING, MIGRATING;
 	}
 
 }
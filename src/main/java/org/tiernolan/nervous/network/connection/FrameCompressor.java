@@ -0,0 +1,231 @@
+package org.tiernolan.nervous.network.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.tiernolan.nervous.network.NetworkManagerImpl;
+import org.tiernolan.nervous.network.api.protocol.CompressionProvider;
+
+/**
+ * The compression state shared by all connections of a network manager.<br>
+ * <br>
+ * Each body is compressed independently, starting from the preset dictionary, so no state is carried between
+ * frames or tied to a connection.  A deflater or inflater, along with its scratch arrays, is taken from an idle
+ * queue for each call and returned afterwards, so the number kept alive follows the number of threads which
+ * compress or decompress at the same time, rather than the number of connections.  Any beyond the idle limit are
+ * ended when they are returned, and the rest are ended when the network manager shuts down.
+ */
+public class FrameCompressor {
+
+	private final CompressionProvider provider;
+	private final NetworkManagerImpl<?> manager;
+	private final byte[] dictionary;
+	private final int threshold;
+	private final int maxIdle;
+
+	private final ConcurrentLinkedQueue<Deflating> deflaters = new ConcurrentLinkedQueue<Deflating>();
+	private final AtomicInteger idleDeflaters = new AtomicInteger(0);
+	private final ConcurrentLinkedQueue<Inflating> inflaters = new ConcurrentLinkedQueue<Inflating>();
+	private final AtomicInteger idleInflaters = new AtomicInteger(0);
+
+	private volatile boolean ended;
+
+	/**
+	 * Creates a frame compressor
+	 * 
+	 * @param provider the compression provider
+	 * @param manager the network manager
+	 * @param maxIdle the maximum number of idle deflaters and inflaters to keep
+	 */
+	public FrameCompressor(CompressionProvider provider, NetworkManagerImpl<?> manager, int maxIdle) {
+		this.provider = provider;
+		this.manager = manager;
+		this.dictionary = provider.getCompressionDictionary();
+		this.threshold = provider.getCompressionThreshold();
+		this.maxIdle = Math.max(1, maxIdle);
+	}
+
+	public CompressionProvider getProvider() {
+		return provider;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Compresses a body.  The output is the uncompressed size followed by the deflated data, and is only written
+	 * if it is smaller than the body.
+	 *
+	 * @param body the body
+	 * @param out the buffer to write the output to
+	 * @return true if the body was compressed
+	 */
+	public boolean compress(ByteBuffer body, ByteBuffer out) {
+		if (ended) {
+			return false;
+		}
+		long start = System.nanoTime();
+		int length = body.remaining();
+		int limit = Math.min(length, out.remaining()) - 4;
+		if (limit <= 0) {
+			return false;
+		}
+		Deflating d = deflaters.poll();
+		if (d == null) {
+			d = new Deflating();
+		} else {
+			idleDeflaters.decrementAndGet();
+		}
+		try {
+			if (d.in.length < length) {
+				d.in = new byte[length];
+			}
+			if (d.out.length < limit) {
+				d.out = new byte[limit];
+			}
+			body.get(d.in, 0, length);
+			Deflater deflater = d.deflater;
+			deflater.reset();
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(d.in, 0, length);
+			deflater.finish();
+			int size = 0;
+			while (!deflater.finished() && size < limit) {
+				size += deflater.deflate(d.out, size, limit - size);
+			}
+			boolean compressed = deflater.finished() && size < limit;
+			if (compressed) {
+				out.putInt(length);
+				out.put(d.out, 0, size);
+			}
+			manager.compressed(length, compressed ? size + 4 : length, System.nanoTime() - start);
+			return compressed;
+		} finally {
+			release(d);
+		}
+	}
+
+	/**
+	 * Decompresses a body written by compress()
+	 *
+	 * @param body the compressed data, after the uncompressed size
+	 * @param out the buffer to write the body to, with exactly the uncompressed size remaining
+	 * @throws IOException if the data is corrupt or does not match the uncompressed size
+	 */
+	public void decompress(ByteBuffer body, ByteBuffer out) throws IOException {
+		if (ended) {
+			throw new IOException("Network manager has been shut down");
+		}
+		long start = System.nanoTime();
+		int length = body.remaining();
+		int size = out.remaining();
+		Inflating i = inflaters.poll();
+		if (i == null) {
+			i = new Inflating();
+		} else {
+			idleInflaters.decrementAndGet();
+		}
+		try {
+			if (i.in.length < length) {
+				i.in = new byte[length];
+			}
+			if (i.out.length < size) {
+				i.out = new byte[size];
+			}
+			body.get(i.in, 0, length);
+			Inflater inflater = i.inflater;
+			inflater.reset();
+			inflater.setInput(i.in, 0, length);
+			int inflated = 0;
+			try {
+				while (!inflater.finished() && inflated < size) {
+					int n = inflater.inflate(i.out, inflated, size - inflated);
+					if (n == 0 && inflater.needsDictionary()) {
+						if (dictionary == null) {
+							throw new IOException("Compressed body requires a dictionary");
+						}
+						inflater.setDictionary(dictionary);
+					} else if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+						break;
+					}
+					inflated += n;
+				}
+				if (inflated < size || !inflater.finished()) {
+					throw new IOException("Compressed body does not match its uncompressed size of " + size);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Compressed body is corrupt", e);
+			}
+			out.put(i.out, 0, size);
+			manager.decompressed(System.nanoTime() - start);
+		} finally {
+			release(i);
+		}
+	}
+
+	/**
+	 * Releases the native compression state.  Deflaters and inflaters in use are ended when they are returned.
+	 */
+	public void end() {
+		ended = true;
+		endIdle();
+	}
+
+	private void release(Deflating d) {
+		if (idleDeflaters.incrementAndGet() <= maxIdle && !ended) {
+			deflaters.add(d);
+			if (ended) {
+				endIdle();
+			}
+		} else {
+			idleDeflaters.decrementAndGet();
+			d.deflater.end();
+		}
+	}
+
+	private void release(Inflating i) {
+		if (idleInflaters.incrementAndGet() <= maxIdle && !ended) {
+			inflaters.add(i);
+			if (ended) {
+				endIdle();
+			}
+		} else {
+			idleInflaters.decrementAndGet();
+			i.inflater.end();
+		}
+	}
+
+	private void endIdle() {
+		Deflating d;
+		while ((d = deflaters.poll()) != null) {
+			idleDeflaters.decrementAndGet();
+			d.deflater.end();
+		}
+		Inflating i;
+		while ((i = inflaters.poll()) != null) {
+			idleInflaters.decrementAndGet();
+			i.inflater.end();
+		}
+	}
+
+	private static class Deflating {
+		private final Deflater deflater = new Deflater();
+		private byte[] in = new byte[0];
+		private byte[] out = new byte[0];
+	}
+
+	private static class Inflating {
+		private final Inflater inflater = new Inflater();
+		private byte[] in = new byte[0];
+		private byte[] out = new byte[0];
+	}
+
+}
@@ -3,25 +3,38 @@ package org.tiernolan.nervous.network.connection;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.Timer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.tiernolan.nervous.network.NetworkConfig;
+import org.tiernolan.nervous.network.NetworkConfig.OutboundOverflowPolicy;
+import org.tiernolan.nervous.network.NetworkConfig.ReadDispatch;
 import org.tiernolan.nervous.network.NetworkManagerImpl;
 import org.tiernolan.nervous.network.api.NetworkManager;
 import org.tiernolan.nervous.network.api.connection.Connection;
+import org.tiernolan.nervous.network.api.connection.SocketProfile;
+import org.tiernolan.nervous.network.balance.SelectorLoad;
 import org.tiernolan.nervous.network.queue.PacketWrapper;
 import org.tiernolan.nervous.network.queue.StripedQueue;
+import org.tiernolan.nervous.network.timer.HashedWheelTimer;
+import org.tiernolan.nervous.network.timer.Timeout;
 
-public class SelectorHandler<C extends Connection<C>> extends Thread {
+public class SelectorHandler<C extends Connection<C>> extends Thread implements SelectorLoad {
 
 	private final NetworkManager<C> manager;
+	private final NetworkConfig config;
+	private final ExecutorService executor;
 
 	private final Selector selector;
 
@@ -30,21 +43,78 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 	private final Lock selectorLock = guard.writeLock();
 	private volatile boolean running = true;
 	
-	private final Timer timer = new Timer();
+	private final HashedWheelTimer timer;
 	
 	private final ConcurrentLinkedQueue<ChannelHandler<C>> channelHandlerSyncQueue = new ConcurrentLinkedQueue<ChannelHandler<C>>();
+	private final ConcurrentLinkedQueue<ChannelHandler<C>> channelHandlerOpsQueue = new ConcurrentLinkedQueue<ChannelHandler<C>>();
+	private final ConcurrentLinkedQueue<PendingChannel<C>> pendingChannelQueue = new ConcurrentLinkedQueue<PendingChannel<C>>();
+	private final ConcurrentLinkedQueue<ChannelHandler<C>> migratedChannelQueue = new ConcurrentLinkedQueue<ChannelHandler<C>>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private final AtomicLong wakeupsRequested = new AtomicLong(0);
+	private final AtomicLong wakeupsIssued = new AtomicLong(0);
+	private final AtomicLong idleEvictions = new AtomicLong(0);
+	private final AtomicLong outboundStallCloses = new AtomicLong(0);
+	private final Runnable idleCheck = new Runnable() {
+		public void run() {
+			checkIdle();
+		}
+	};
+	
+	private final AtomicInteger pendingChannels = new AtomicInteger(0);
+	private final AtomicLong bytes = new AtomicLong(0);
+	private long events = 0;
+	private long lastSampleTime;
+	private long lastSampleEvents;
+	private long lastSampleBytes;
+	private volatile double eventRate = 0;
+	private volatile double byteRate = 0;
+	private final Runnable loadSample = new Runnable() {
+		public void run() {
+			sampleLoad();
+		}
+	};
+	private final AtomicLong migrations = new AtomicLong(0);
+	private long lastRebalanceTime;
+	private final Runnable rebalance = new Runnable() {
+		public void run() {
+			rebalance();
+		}
+	};
 	private final ConcurrentHashMap<ChannelHandler<C>, Boolean> channels = new ConcurrentHashMap<ChannelHandler<C>, Boolean>();
 
 	public SelectorHandler(NetworkManager<C> manager) throws IOException {
+		this(manager, manager.getExecutorService());
+	}
+	
+	/**
+	 * Creates a selector handler which submits reads and writes to the given executor service
+	 * 
+	 * @param manager
+	 * @param executor
+	 * @throws IOException
+	 */
+	public SelectorHandler(NetworkManager<C> manager, ExecutorService executor) throws IOException {
 		this.setName("SelectorHandler {" + manager + "}");
 		this.selector = SelectorProvider.provider().openSelector();
 		this.manager = manager;
+		this.executor = executor;
+		if (manager instanceof NetworkManagerImpl) {
+			this.config = ((NetworkManagerImpl<C>) manager).getConfig();
+		} else {
+			this.config = new NetworkConfig();
+		}
+		this.timer = new HashedWheelTimer(config.getTimerTickMillis(), config.getTimerWheelSize());
 	}
 
 	@Override
 	public void run() {
 
 		try {
+			timer.schedule(idleCheck, config.getIdleCheckInterval());
+			lastSampleTime = System.nanoTime();
+			timer.schedule(loadSample, config.getLoadSampleInterval());
+			lastRebalanceTime = lastSampleTime;
+			timer.schedule(rebalance, getRebalanceDelay());
 			while (running || !channels.isEmpty()) {
 
 				if (interrupted()) {
@@ -53,18 +123,33 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 				}
 
 				touchGuard();
+				wakeupPending.set(false);
+				addPendingChannels();
+				addMigratedChannels();
+				ChannelHandler<C> h;
+				while ((h = channelHandlerSyncQueue.poll()) != null) {
+					h.sync();
+				}
+				while ((h = channelHandlerOpsQueue.poll()) != null) {
+					h.applyOps();
+				}
 				int n;
 				try {
-					n = selector.select();
+					long timeout = timer.getSelectTimeout();
+					if (timeout < 0) {
+						n = selector.selectNow();
+					} else {
+						n = selector.select(timeout);
+					}
 				} catch (IOException e) {
 					manager.getLogger().info("IOException thrown, " + e.getMessage());
 					break;
 				}
-				ChannelHandler<C> h;
-				while ((h = channelHandlerSyncQueue.poll()) != null) {
-					h.sync();
-				}
+				timer.expire();
 				if (n > 0) {
+					boolean inline = config.getReadDispatch() == ReadDispatch.INLINE;
+					int inlineBytes = config.getInlineReadByteBudget();
+					long inlineDeadline = inline ? System.nanoTime() + config.getInlineReadNanoBudget() : 0;
 					Set<SelectionKey> keys = selector.selectedKeys();
 
 					Iterator<SelectionKey> i = keys.iterator();
@@ -74,45 +159,265 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 						if (!key.isValid()) {
 							continue;
 						}
-						if (key.isReadable()) {
+						events++;
+						if (key.isAcceptable()) {
+							accept((ServerSocketChannel) key.channel(), (SocketProfile) key.attachment());
+						} else if (key.isReadable()) {
 							@SuppressWarnings("unchecked")
 							ChannelHandler<C> channelHandler = (ChannelHandler<C>) key.attachment();
-							manager.getExecutorService().submit(channelHandler.getReadRunnable());
+							if (inline && inlineBytes > 0 && System.nanoTime() < inlineDeadline) {
+								inlineBytes -= Math.max(0, channelHandler.readInline(inlineBytes));
+							} else {
+								Runnable read = channelHandler.getReadRunnable();
+								if (read != null) {
+									executor.submit(read);
+								}
+							}
 						} else if (key.isWritable()) {
 							@SuppressWarnings("unchecked")
 							ChannelHandler<C> channelHandler = (ChannelHandler<C>) key.attachment();
-							manager.getExecutorService().submit(channelHandler.getWriteRunnable());
+							Runnable write = channelHandler.getWriteRunnable();
+							if (write != null) {
+								executor.submit(write);
+							}
 						}
 					}
 				}
 			}
 		} finally {
+			closePendingChannels();
+			closeMigratedChannels();
+			closeServerChannels();
 			closeSelector();
-			timer.cancel();
+			timer.clear();
 		}
 	}
 
-	public boolean setReadWrite(SelectionKey key) {
-		return setOps(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	/**
+	 * Queues the channel handler to have its interest ops updated at the start of the next select loop iteration.
+	 * 
+	 * @param handler
+	 */
+	public void updateOps(ChannelHandler<C> handler) {
+		if (handler.setOpsQueued()) {
+			channelHandlerOpsQueue.add(handler);
+			wakeup();
+		}
 	}
-
-	public boolean setReadOnly(SelectionKey key) {
-		return setOps(key, SelectionKey.OP_READ);
+	
+	/**
+	 * Submits a task to this selector's executor service
+	 * 
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		executor.submit(task);
 	}
-
-	public boolean setOps(SelectionKey key, int ops) {
-		keyLock.lock();
+	
+	/**
+	 * Wakes up the selector, unless a wakeup is already pending or the caller is the selector thread.
+	 */
+	public void wakeup() {
+		wakeupsRequested.incrementAndGet();
+		if (currentThread() == this) {
+			return;
+		}
+		if (wakeupPending.compareAndSet(false, true)) {
+			wakeupsIssued.incrementAndGet();
+			selector.wakeup();
+		}
+	}
+	
+	public int getConnectionCount() {
+		return channels.size() + pendingChannels.get();
+	}
+	
+	public double getEventRate() {
+		return eventRate;
+	}
+	
+	public double getByteRate() {
+		return byteRate;
+	}
+	
+	/**
+	 * Records bytes read or written by one of this selector's channels
+	 * 
+	 * @param count the number of bytes
+	 */
+	public void addBytes(int count) {
+		bytes.addAndGet(count);
+	}
+	
+	private void sampleLoad() {
+		long now = System.nanoTime();
+		double seconds = (now - lastSampleTime) / 1000000000.0;
+		if (seconds > 0) {
+			long totalBytes = bytes.get();
+			eventRate = (eventRate + (events - lastSampleEvents) / seconds) / 2;
+			byteRate = (byteRate + (totalBytes - lastSampleBytes) / seconds) / 2;
+			lastSampleEvents = events;
+			lastSampleBytes = totalBytes;
+			lastSampleTime = now;
+		}
+		timer.schedule(loadSample, config.getLoadSampleInterval());
+	}
+	
+	/**
+	 * Gets the number of channels closed after exceeding an idle timeout
+	 * 
+	 * @return the number of idle evictions
+	 */
+	public long getIdleEvictions() {
+		return idleEvictions.get();
+	}
+	
+	/**
+	 * Gets the number of channels closed after staying above the outbound high watermark for too long
+	 * 
+	 * @return the number of closed channels
+	 */
+	public long getOutboundStallCloses() {
+		return outboundStallCloses.get();
+	}
+	
+	private void checkIdle() {
+		long now = System.nanoTime();
+		for (ChannelHandler<C> handler : channels.keySet()) {
+			if (handler.isIdle(now)) {
+				if (handler.asyncClose()) {
+					idleEvictions.incrementAndGet();
+				}
+			} else if (handler.getSerdes().isOutboundStalled(now) && config.getOutboundOverflowPolicy() == OutboundOverflowPolicy.CLOSE) {
+				if (handler.asyncClose()) {
+					outboundStallCloses.incrementAndGet();
+				}
+			}
+		}
+		timer.schedule(idleCheck, config.getIdleCheckInterval());
+	}
+	
+	/**
+	 * Gets the number of channels moved from this selector to another selector
+	 * 
+	 * @return the number of migrations
+	 */
+	public long getMigrations() {
+		return migrations.get();
+	}
+	
+	/**
+	 * Gets the delay until the next rebalance.  The rebalance task is always scheduled, so that rebalancing can be 
+	 * enabled after the selector has started.  While it is disabled, the task runs at the idle check interval.
+	 * 
+	 * @return the delay in milliseconds
+	 */
+	private long getRebalanceDelay() {
+		long interval = config.getRebalanceInterval();
+		return interval > 0 ? interval : config.getIdleCheckInterval();
+	}
+	
+	private void rebalance() {
+		if (config.getRebalanceInterval() <= 0) {
+			timer.schedule(rebalance, getRebalanceDelay());
+			return;
+		}
+		long now = System.nanoTime();
+		double seconds = (now - lastRebalanceTime) / 1000000000.0;
+		lastRebalanceTime = now;
+		ChannelHandler<C> heaviest = null;
+		long heaviestBytes = 0;
+		for (ChannelHandler<C> handler : channels.keySet()) {
+			long handlerBytes = handler.sampleBytes();
+			if (handlerBytes > heaviestBytes) {
+				heaviest = handler;
+				heaviestBytes = handlerBytes;
+			}
+		}
+		if (heaviest != null && seconds > 0 && running && manager instanceof NetworkManagerImpl) {
+			SelectorHandler<C> target = ((NetworkManagerImpl<C>) manager).getMigrationTarget(this, heaviestBytes / seconds);
+			if (target != null) {
+				migrate(heaviest, target);
+			}
+		}
+		timer.schedule(rebalance, getRebalanceDelay());
+	}
+	
+	/**
+	 * Moves a channel handler from this selector to another selector.  Only idle handlers are moved, so there is no 
+	 * read or write in progress, and the handler keeps its packet queue, so per stripe ordering is unaffected.  This 
+	 * method must only be called by this selector's thread.
+	 * 
+	 * @param handler the handler
+	 * @param target the selector to move the handler to
+	 * @return false if the handler was not moved
+	 */
+	public boolean migrate(ChannelHandler<C> handler, SelectorHandler<C> target) {
+		if (currentThread() != this) {
+			throw new IllegalStateException("Channels may only be migrated by their selector thread");
+		}
+		if (target == this || !channels.containsKey(handler)) {
+			return false;
+		}
+		target.keyLock.lock();
 		try {
-			if (!key.isValid()) {
+			if (!target.running || !handler.startMigration()) {
 				return false;
 			}
-			boolean oldWrite = (key.interestOps() & SelectionKey.OP_WRITE) != 0;
-			selector.wakeup();
-			key.interestOps(ops);
-			return oldWrite;
+			channels.remove(handler);
+			target.pendingChannels.incrementAndGet();
+			target.migratedChannelQueue.add(handler);
 		} finally {
-			keyLock.unlock();
+			target.keyLock.unlock();
 		}
+		migrations.incrementAndGet();
+		target.wakeup();
+		return true;
+	}
+	
+	private void addMigratedChannels() {
+		ChannelHandler<C> handler;
+		while ((handler = migratedChannelQueue.poll()) != null) {
+			pendingChannels.decrementAndGet();
+			channels.put(handler, Boolean.TRUE);
+			SelectionKey key;
+			try {
+				key = handler.getChannel().register(selector, 0, handler);
+			} catch (IOException e) {
+				key = null;
+			}
+			handler.completeMigration(this, key);
+			if (!running && key != null) {
+				handler.shutdown(0);
+			}
+		}
+	}
+	
+	private void closeMigratedChannels() {
+		ChannelHandler<C> handler;
+		while ((handler = migratedChannelQueue.poll()) != null) {
+			pendingChannels.decrementAndGet();
+			channels.put(handler, Boolean.TRUE);
+			handler.completeMigration(this, null);
+		}
+	}
+	
+	/**
+	 * Gets the number of selector wakeups that have been requested
+	 * 
+	 * @return the number of wakeups requested
+	 */
+	public long getWakeupsRequested() {
+		return wakeupsRequested.get();
+	}
+	
+	/**
+	 * Gets the number of selector wakeups that were actually issued
+	 * 
+	 * @return the number of wakeups issued
+	 */
+	public long getWakeupsIssued() {
+		return wakeupsIssued.get();
 	}
 
 	public SelectionKey register(SocketChannel channel, ChannelHandler<C> channelHandler) throws IOException {
@@ -121,7 +426,7 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 			if (!running) {
 				return null;
 			}
-			selector.wakeup();
+			wakeup();
 			return channel.register(selector, SelectionKey.OP_READ, channelHandler);
 		} finally {
 			keyLock.unlock();
@@ -153,6 +458,127 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 		}
 	}
 
+	/**
+	 * Registers a server socket channel with this selector.  Incoming connections are accepted on the selector thread.
+	 * 
+	 * @param serverChannel
+	 * @return false if the selector is not running
+	 * @throws IOException
+	 */
+	public boolean addServerChannel(ServerSocketChannel serverChannel) throws IOException {
+		return addServerChannel(serverChannel, null);
+	}
+	
+	/**
+	 * Registers a server socket channel with this selector.  Incoming connections are accepted on the selector thread.
+	 * 
+	 * @param serverChannel
+	 * @param profile the socket options for accepted channels, or null for the manager's default options
+	 * @return false if the selector is not running
+	 * @throws IOException
+	 */
+	public boolean addServerChannel(ServerSocketChannel serverChannel, SocketProfile profile) throws IOException {
+		keyLock.lock();
+		try {
+			if (!running) {
+				return false;
+			}
+			serverChannel.configureBlocking(false);
+			wakeup();
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT, profile);
+			return true;
+		} finally {
+			keyLock.unlock();
+		}
+	}
+	
+	private void accept(ServerSocketChannel serverChannel, SocketProfile profile) {
+		while (running) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				manager.getLogger().info("Exception thrown by server socket when accepting " + e);
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			if (manager instanceof NetworkManagerImpl) {
+				NetworkManagerImpl<C> managerImpl = (NetworkManagerImpl<C>) manager;
+				managerImpl.addChannel(channel, profile == null ? managerImpl.getSocketProfile(null) : profile);
+			} else {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void closeServerChannels() {
+		selectorLock.lock();
+		try {
+			if (!selector.isOpen()) {
+				return;
+			}
+			for (SelectionKey key : selector.keys()) {
+				if (key.channel() instanceof ServerSocketChannel) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						manager.getLogger().info("Exception thrown when closing server socket " + e);
+					}
+				}
+			}
+		} finally {
+			selectorLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a channel to be added to this selector at the start of the next select loop iteration.  This method 
+	 * may be called by any thread.
+	 * 
+	 * @param channel
+	 * @param queue the handler queue for the channel
+	 * @return false if the selector is not running
+	 */
+	public boolean queueChannel(SocketChannel channel, StripedQueue<PacketWrapper<C>> queue) {
+		if (!running) {
+			return false;
+		}
+		pendingChannels.incrementAndGet();
+		pendingChannelQueue.add(new PendingChannel<C>(channel, queue));
+		wakeup();
+		return true;
+	}
+	
+	private void addPendingChannels() {
+		PendingChannel<C> pending;
+		while ((pending = pendingChannelQueue.poll()) != null) {
+			pendingChannels.decrementAndGet();
+			if (addChannel(pending.channel, pending.queue) == null) {
+				closeChannel(pending.channel);
+			}
+		}
+	}
+	
+	private void closePendingChannels() {
+		PendingChannel<C> pending;
+		while ((pending = pendingChannelQueue.poll()) != null) {
+			pendingChannels.decrementAndGet();
+			closeChannel(pending.channel);
+		}
+	}
+	
+	private void closeChannel(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
 	public void closeSelector() {
 		selectorLock.lock();
 		try {
@@ -172,35 +598,45 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 		selectorLock.lock();
 		try {
 			running = false;
+			if (!selector.isOpen()) {
+				return;
+			}
 			Set<SelectionKey> keys = selector.keys();
-			if (keys.size() == 0) {
-				selector.wakeup();
-			} else {
-				for (SelectionKey key : keys) {
-					if (key.isValid()) {
-						@SuppressWarnings("unchecked")
-						ChannelHandler<C> handler = ((ChannelHandler<C>) key.attachment());
-						handler.shutdown(timeout);
-					}
+			for (SelectionKey key : keys) {
+				if (key.isValid() && key.attachment() instanceof ChannelHandler) {
+					@SuppressWarnings("unchecked")
+					ChannelHandler<C> handler = ((ChannelHandler<C>) key.attachment());
+					handler.shutdown(timeout);
 				}
 			}
+			closeServerChannels();
+			selector.wakeup();
 		} finally {
 			selectorLock.unlock();
 		}
 	}
 	
-	protected Timer getTimer() {
-		return timer;
+	/**
+	 * Schedules a task to run on the selector thread after the given delay
+	 * 
+	 * @param task the task
+	 * @param delay the delay in milliseconds
+	 * @return the timeout
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		Timeout timeout = timer.schedule(task, delay);
+		wakeup();
+		return timeout;
 	}
 
 	public void notifyClosed(ChannelHandler<C> handler) {
 		keyLock.lock();
 		try {
-			if (channels.remove(handler)) {
+			if (channels.remove(handler) != null) {
 				if (manager instanceof NetworkManagerImpl) {
 					((NetworkManagerImpl<C>) manager).deregister(handler);
 				}
-				selector.wakeup();
+				wakeup();
 			}
 		} finally {
 			keyLock.unlock();
@@ -209,7 +645,7 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 
 	public void queueForSync(ChannelHandler<C> handler) {
 		channelHandlerSyncQueue.add(handler);
-		selector.wakeup();
+		wakeup();
 	}
 
 	private void touchGuard() {
@@ -220,4 +656,16 @@ public class SelectorHandler<C extends Connection<C>> extends Thread {
 		}
 	}
 
+	private static class PendingChannel<C extends Connection<C>> {
+		
+		private final SocketChannel channel;
+		private final StripedQueue<PacketWrapper<C>> queue;
+		
+		public PendingChannel(SocketChannel channel, StripedQueue<PacketWrapper<C>> queue) {
+			this.channel = channel;
+			this.queue = queue;
+		}
+		
+	}
+
 }
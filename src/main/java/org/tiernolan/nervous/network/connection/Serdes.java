@@ -8,6 +8,7 @@ import org.tiernolan.nervous.network.api.NetworkManagerComponent;
 import org.tiernolan.nervous.network.api.connection.Connection;
 import org.tiernolan.nervous.network.api.connection.Network;
 import org.tiernolan.nervous.network.api.protocol.ProtocolComponent;
+import org.tiernolan.nervous.network.bufferpool.SharedBuffer;
 
 public interface Serdes<C extends Connection<C>> extends Network<C>, ProtocolComponent<C>, NetworkManagerComponent<C> {
 
@@ -20,6 +21,32 @@ public interface Serdes<C extends Connection<C>> extends Network<C>, ProtocolCom
 	 */
 	public int read(ReadableByteChannel channel) throws IOException;
 	
+	/**
+	 * Called by the Network when new data arrives, with a limit on the number of bytes to read in addition to the 
+	 * configured read budget.  Reads stopped by the limit are not counted as read budget hits.
+	 * 
+	 * @param channel
+	 * @param byteLimit the maximum number of bytes to read, or 0 for no additional limit
+	 * @return the number of bytes processed
+	 * @throws IOException
+	 */
+	public int read(ReadableByteChannel channel, int byteLimit) throws IOException;
+	
+	/**
+	 * Gets the number of reads which returned early because the read budget was used up
+	 * 
+	 * @return the number of budget hits
+	 */
+	public long getReadBudgetHits();
+	
+	/**
+	 * Checks if a complete frame has already been read from the channel and is waiting to be decoded.  Since the 
+	 * channel may have no more data, the selector will not report it as readable.
+	 * 
+	 * @return true if a complete frame is buffered
+	 */
+	public boolean hasBufferedFrame();
+	
 	/**
 	 * Called by the Network to write packets to the network channel.
 	 * 
@@ -29,4 +56,24 @@ public interface Serdes<C extends Connection<C>> extends Network<C>, ProtocolCom
 	 */
 	public int write(WritableByteChannel channel) throws IOException;
 	
+	/**
+	 * Checks if the network has been unwritable for longer than the outbound stall timeout
+	 * 
+	 * @param now the current System.nanoTime()
+	 * @return true if the outbound buffer has been over its high watermark for too long
+	 */
+	public boolean isOutboundStalled(long now);
+	
+	/**
+	 * Writes an already encoded packet.  The buffer is retained until it has been written, and is then released.
+	 * 
+	 * @param buffer the shared buffer
+	 */
+	public void writeShared(SharedBuffer buffer);
+	
+	/**
+	 * Called once the channel has been closed.  Shared buffers which are still queued are released.
+	 */
+	public void closed();
+	
 }
@@ -3,20 +3,37 @@ package org.tiernolan.nervous.network.connection;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.tiernolan.nervous.network.NetworkConfig;
+import org.tiernolan.nervous.network.NetworkConfig.OutboundOverflowPolicy;
+import org.tiernolan.nervous.network.NetworkConfig.ReadFraming;
 import org.tiernolan.nervous.network.NetworkManagerImpl;
 import org.tiernolan.nervous.network.api.NetworkManager;
 import org.tiernolan.nervous.network.api.connection.Connection;
+import org.tiernolan.nervous.network.api.protocol.ChunkedDecoder;
 import org.tiernolan.nervous.network.api.protocol.Decoder;
 import org.tiernolan.nervous.network.api.protocol.Encoder;
 import org.tiernolan.nervous.network.api.protocol.Packet;
 import org.tiernolan.nervous.network.api.protocol.Protocol;
+import org.tiernolan.nervous.network.api.protocol.RetainingDecoder;
+import org.tiernolan.nervous.network.api.protocol.StreamingEncoder;
+import org.tiernolan.nervous.network.bufferpool.BufferChain;
+import org.tiernolan.nervous.network.bufferpool.ByteBufferPool;
+import org.tiernolan.nervous.network.bufferpool.SharedBuffer;
 import org.tiernolan.nervous.network.queue.PacketWrapper;
 import org.tiernolan.nervous.network.queue.StripedQueue;
+import org.tiernolan.nervous.network.timer.Timeout;
 
 public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 	
@@ -35,6 +52,18 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 	private final ChannelControl channelControl;
 	private final StripedQueue<PacketWrapper<C>> handlerQueue;
 	private final ConcurrentLinkedQueue<Packet<C>> writeQueue = new ConcurrentLinkedQueue<Packet<C>>();
+	private final AtomicLong outboundBytes = new AtomicLong(0);
+	private final AtomicBoolean unwritable = new AtomicBoolean(false);
+	private final AtomicBoolean notifying = new AtomicBoolean(false);
+	private volatile boolean notifiedWritable = true;
+	private volatile long unwritableSince;
+	private volatile long readBudgetHits;
+	private volatile int corkBytes;
+	private volatile long corkDelay;
+	private final AtomicLong corkedBytes = new AtomicLong(0);
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final AtomicReference<Timeout> flushTimeout = new AtomicReference<Timeout>();
+	private final AtomicBoolean writeLock = new AtomicBoolean(false);
 	
 	private boolean shutdown = false;
 	
@@ -44,9 +73,35 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 	private ByteBuffer body;
 	private Reference<ByteBuffer> writeRef;
 	private ByteBuffer write;
+	private int writeSize;
+	private SharedBuffer writeShared;
+	
+	private Reference<ByteBuffer>[] gatherRefs;
+	private SharedBuffer[] gatherShared;
+	private ByteBuffer[] gather;
+	private int[] gatherSizes;
+	private int gatherOffset;
+	private int gatherCount;
+	private boolean closeAfterGather;
+	
+	private Transfer transfer;
+	private volatile boolean closed;
 	
 	private boolean readingHeader;
 	private boolean seeking;
+	
+	private final boolean bulk;
+	private Reference<ByteBuffer> receiveRef;
+	private ByteBuffer receive;
+	private SharedBuffer receiveShared;
+	private Packet<C> receivedPacket;
+	
+	private ChunkedDecoder<Packet<C>, C> chunkDecoder;
+	private ByteBuffer chunkHeader;
+	private long chunkOffset;
+	private int chunkRemaining;
+	
+	private final FrameCompressor compressor;
 
 	public SerdesImpl(NetworkManager<C> manager, ChannelControl channelControl, StripedQueue<PacketWrapper<C>> handlerQueue) {
 		this.manager = manager;
@@ -56,6 +111,16 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 		this.handlerQueue = handlerQueue;
 		this.connection = protocol.newConnection(this);
 		this.channelControl = channelControl;
+		if (manager instanceof NetworkManagerImpl) {
+			NetworkConfig config = ((NetworkManagerImpl<C>) manager).getConfig();
+			this.bulk = config.getReadFraming() == ReadFraming.BULK;
+			this.corkBytes = config.getWriteCorkBytes();
+			this.corkDelay = config.getWriteCorkDelay();
+			this.compressor = ((NetworkManagerImpl<C>) manager).getFrameCompressor();
+		} else {
+			this.bulk = false;
+			this.compressor = null;
+		}
 	}
 
 	public Protocol<C> getProtocol() {
@@ -67,9 +132,27 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 	}
 	
 	public int read(ReadableByteChannel channel) throws IOException {
+		return read(channel, 0);
+	}
+	
+	public int read(ReadableByteChannel channel, int byteLimit) throws IOException {
+		NetworkConfig config = ((NetworkManagerImpl<C>) manager).getConfig();
+		int packetBudget = config.getReadPacketBudget();
+		int byteBudget = config.getReadByteBudget();
+		if (bulk) {
+			return readBulk(channel, packetBudget, byteBudget, byteLimit);
+		}
+		int packets = 0;
 		int read = 0;
 		int r = 0;
 		while (true) {
+			if ((packetBudget > 0 && packets >= packetBudget) || (byteBudget > 0 && read >= byteBudget)) {
+				readBudgetHits++;
+				return read;
+			}
+			if (byteLimit > 0 && read >= byteLimit) {
+				return read;
+			}
 			if (seeking) {
 				if (header == null) {
 					headerRef = ((NetworkManagerImpl<C>) manager).getByteBufferPool().get(protocol.getPacketHeaderSize());
@@ -101,28 +184,78 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 			} else {
 				if (body == null) {
 					int size = protocol.getPacketBodySize(header);
-					bodyRef = ((NetworkManagerImpl<C>) manager).getByteBufferPool().get(size);
-					body = bodyRef.get();
+					Decoder<Packet<C>, C> decoder = protocol.getPacketDecoder(header);
+					if (decoder instanceof ChunkedDecoder && size > config.getChunkSize() && !isCompressed(header)) {
+						startChunks((ChunkedDecoder<Packet<C>, C>) decoder, header, size);
+						bodyRef = ((NetworkManagerImpl<C>) manager).getByteBufferPool().get(config.getChunkSize());
+						body = bodyRef.get();
+						body.limit(Math.min(config.getChunkSize(), chunkRemaining));
+					} else {
+						if (size < 0 || size > protocol.getMaxPacketSize()) {
+							throw new IOException("Invalid packet body size " + size);
+						}
+						bodyRef = ((NetworkManagerImpl<C>) manager).getByteBufferPool().get(size);
+						body = bodyRef.get();
+					}
 				}
 				read += Math.max(0, r = channel.read(body));
-				if (!body.hasRemaining()) {
+				if (!body.hasRemaining() && chunkDecoder != null) {
 					body.flip();
+					boolean accepting = queuePacket(decodeChunk(body));
+					if (chunkDecoder == null) {
+						((NetworkManagerImpl<C>) manager).getByteBufferPool().put(bodyRef);
+						((NetworkManagerImpl<C>) manager).getByteBufferPool().put(headerRef);
+						body = null;
+						bodyRef = null;
+						header = null;
+						headerRef = null;
+					} else {
+						body.clear();
+						body.limit(Math.min(config.getChunkSize(), chunkRemaining));
+					}
+					packets++;
+					if (!accepting) {
+						return read;
+					}
+				} else if (!body.hasRemaining()) {
+					body.flip();
+					if (isCompressed(header)) {
+						Reference<ByteBuffer> inflated = decompress(header, body);
+						((NetworkManagerImpl<C>) manager).getByteBufferPool().put(bodyRef);
+						bodyRef = inflated;
+						body = inflated.get();
+					}
 					Decoder<Packet<C>, C> decoder = protocol.getPacketDecoder(header);
 					if (decoder == null) {
 						throw new IOException("No decoder found for packet header");
 					}
-					Packet<C> p = decoder.decode(header, body);
+					SharedBuffer shared = null;
+					Packet<C> p;
+					if (decoder instanceof RetainingDecoder) {
+						shared = new SharedBuffer(((NetworkManagerImpl<C>) manager).getByteBufferPool(), bodyRef);
+						p = ((RetainingDecoder<Packet<C>, C>) decoder).decode(header, shared);
+					} else {
+						p = decoder.decode(header, body);
+					}
 					if (p == null) {
 						throw new IOException("Decoding failed for packet");
 					}
-					handlerQueue.offer(new PacketWrapper<C>(connection, p));
-					((NetworkManagerImpl<C>) manager).getByteBufferPool().put(bodyRef);
+					boolean accepting = queuePacket(p);
+					if (shared != null) {
+						shared.release();
+					} else {
+						((NetworkManagerImpl<C>) manager).getByteBufferPool().put(bodyRef);
+					}
 					((NetworkManagerImpl<C>) manager).getByteBufferPool().put(headerRef);
 					body = null;
 					bodyRef = null;
 					header = null;
 					headerRef = null;
 					seeking = true;
+					packets++;
+					if (!accepting) {
+						return read;
+					}
 				} else {
 					return (r == -1 && read == 0) ? -1 : read;
 				}
@@ -130,12 +263,352 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 		}
 	}
 
+	private int readBulk(ReadableByteChannel channel, int packetBudget, int byteBudget, int byteLimit) throws IOException {
+		int packets = 0;
+		int read = 0;
+		try {
+			while (true) {
+				if ((packetBudget > 0 && packets >= packetBudget) || (byteBudget > 0 && read >= byteBudget)) {
+					readBudgetHits++;
+					return read;
+				}
+				if (byteLimit > 0 && read >= byteLimit) {
+					return read;
+				}
+				if (receive != null && decodeFrame()) {
+					packets++;
+					if (!queuePacket(receivedPacket)) {
+						receivedPacket = null;
+						return read;
+					}
+					receivedPacket = null;
+					continue;
+				}
+				if (receive == null) {
+					allocateReceive();
+					receive.flip();
+				} else if (receiveShared != null && receiveShared.refCount() > 1) {
+					// A decoder retained a body from this buffer, so the partial frame is moved to a new buffer 
+					// rather than compacted over the retained data
+					ByteBuffer old = receive;
+					SharedBuffer oldShared = receiveShared;
+					receiveShared = null;
+					allocateReceive();
+					receive.put(old);
+					receive.flip();
+					oldShared.release();
+				}
+				receive.compact();
+				int r;
+				try {
+					r = channel.read(receive);
+				} finally {
+					receive.flip();
+				}
+				if (r <= 0) {
+					return (r == -1 && read == 0) ? -1 : read;
+				}
+				read += r;
+			}
+		} finally {
+			if (receive != null && !receive.hasRemaining()) {
+				if (receiveShared != null) {
+					receiveShared.release();
+				} else if (receiveRef != null) {
+					((NetworkManagerImpl<C>) manager).getByteBufferPool().put(receiveRef);
+				}
+				receive = null;
+				receiveRef = null;
+				receiveShared = null;
+			}
+		}
+	}
+	
+	private void allocateReceive() {
+		NetworkConfig config = ((NetworkManagerImpl<C>) manager).getConfig();
+		int size = Math.max(config.getBulkReadBufferSize(), protocol.getPacketHeaderSize() + Math.max(protocol.getMaxPacketSize(), config.getChunkSize()));
+		ByteBufferPool pool = ((NetworkManagerImpl<C>) manager).getByteBufferPool();
+		if (size <= pool.getMaxSize()) {
+			receiveRef = pool.get(size);
+			receive = receiveRef.get();
+		} else {
+			receiveRef = null;
+			receive = ByteBuffer.allocate(size);
+		}
+	}
+	
+	/**
+	 * Decodes the next frame from the receive buffer.  The decoded packet is stored in receivedPacket.
+	 * 
+	 * @return false if the buffer does not contain a complete frame
+	 * @throws IOException
+	 */
+	private boolean decodeFrame() throws IOException {
+		if (chunkDecoder != null) {
+			int length = Math.min(((NetworkManagerImpl<C>) manager).getConfig().getChunkSize(), chunkRemaining);
+			if (receive.remaining() < length) {
+				return false;
+			}
+			int position = receive.position();
+			receive.position(position + length);
+			receivedPacket = decodeChunk(slice(receive, position, length));
+			return true;
+		}
+		if (seeking) {
+			ByteBuffer view = receive.duplicate();
+			boolean found = protocol.seekToHeader(view);
+			receive.position(view.position());
+			if (!found) {
+				return false;
+			}
+			seeking = false;
+		}
+		int headerSize = protocol.getPacketHeaderSize();
+		if (receive.remaining() < headerSize) {
+			return false;
+		}
+		int start = receive.position();
+		ByteBuffer frameHeader = slice(receive, start, headerSize);
+		int bodySize = protocol.getPacketBodySize(frameHeader);
+		Decoder<Packet<C>, C> decoder = protocol.getPacketDecoder(frameHeader);
+		boolean compressed = isCompressed(frameHeader);
+		if (!compressed && decoder instanceof ChunkedDecoder && bodySize > ((NetworkManagerImpl<C>) manager).getConfig().getChunkSize()) {
+			ByteBuffer copy = ByteBuffer.allocate(headerSize);
+			copy.put(frameHeader);
+			copy.flip();
+			receive.position(start + headerSize);
+			startChunks((ChunkedDecoder<Packet<C>, C>) decoder, copy, bodySize);
+			return decodeFrame();
+		}
+		if (bodySize < 0 || bodySize > protocol.getMaxPacketSize()) {
+			throw new IOException("Invalid packet body size " + bodySize);
+		}
+		if (receive.remaining() < headerSize + bodySize) {
+			return false;
+		}
+		Packet<C> p;
+		if (compressed) {
+			p = decodeCompressed(frameHeader, slice(receive, start + headerSize, bodySize));
+		} else if (decoder == null) {
+			throw new IOException("No decoder found for packet header");
+		} else if (decoder instanceof RetainingDecoder) {
+			if (receiveShared == null) {
+				receiveShared = receiveRef != null ? new SharedBuffer(((NetworkManagerImpl<C>) manager).getByteBufferPool(), receiveRef) : new SharedBuffer(receive);
+			}
+			p = ((RetainingDecoder<Packet<C>, C>) decoder).decode(frameHeader, receiveShared.slice(start + headerSize, bodySize));
+		} else {
+			p = decoder.decode(frameHeader, slice(receive, start + headerSize, bodySize));
+		}
+		if (p == null) {
+			throw new IOException("Decoding failed for packet");
+		}
+		receive.position(start + headerSize + bodySize);
+		seeking = true;
+		receivedPacket = p;
+		return true;
+	}
+	
+	/**
+	 * Inflates and decodes a compressed body from the receive buffer
+	 * 
+	 * @param frameHeader the header
+	 * @param body the compressed body
+	 * @return the decoded packet
+	 * @throws IOException
+	 */
+	private Packet<C> decodeCompressed(ByteBuffer frameHeader, ByteBuffer body) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(frameHeader.remaining());
+		header.put(frameHeader);
+		header.flip();
+		Reference<ByteBuffer> ref = decompress(header, body);
+		SharedBuffer shared = new SharedBuffer(((NetworkManagerImpl<C>) manager).getByteBufferPool(), ref);
+		try {
+			Decoder<Packet<C>, C> decoder = protocol.getPacketDecoder(header);
+			if (decoder == null) {
+				throw new IOException("No decoder found for packet header");
+			}
+			if (decoder instanceof RetainingDecoder) {
+				return ((RetainingDecoder<Packet<C>, C>) decoder).decode(header, shared);
+			}
+			return decoder.decode(header, ref.get());
+		} finally {
+			shared.release();
+		}
+	}
+	
+	private boolean isCompressed(ByteBuffer header) {
+		return compressor != null && compressor.getProvider().isCompressed(header);
+	}
+	
+	/**
+	 * Inflates a compressed body into a new pool buffer, and restores the header to its uncompressed form
+	 * 
+	 * @param header the header
+	 * @param body the compressed body
+	 * @return the reference to the flipped body
+	 * @throws IOException
+	 */
+	private Reference<ByteBuffer> decompress(ByteBuffer header, ByteBuffer body) throws IOException {
+		if (body.remaining() < 4) {
+			throw new IOException("Compressed body is too short");
+		}
+		int size = body.getInt();
+		if (size <= 0 || size > protocol.getMaxPacketSize()) {
+			throw new IOException("Invalid uncompressed body size " + size);
+		}
+		ByteBufferPool pool = ((NetworkManagerImpl<C>) manager).getByteBufferPool();
+		Reference<ByteBuffer> ref = pool.get(size);
+		try {
+			compressor.decompress(body, ref.get());
+		} catch (IOException e) {
+			pool.put(ref);
+			throw e;
+		}
+		ref.get().flip();
+		compressor.getProvider().setCompressed(header, false, size);
+		return ref;
+	}
+	
+	/**
+	 * Compresses the body of an encoded frame, if the protocol supports compression and the body is large enough
+	 * 
+	 * @param ref the reference to the flipped frame
+	 * @return the reference to the frame to send, which is the original frame if the body was not compressed
+	 */
+	private Reference<ByteBuffer> compress(Reference<ByteBuffer> ref) {
+		if (compressor == null) {
+			return ref;
+		}
+		ByteBuffer frame = ref.get();
+		int headerSize = protocol.getPacketHeaderSize();
+		int bodySize = frame.remaining() - headerSize;
+		if (bodySize < compressor.getThreshold()) {
+			return ref;
+		}
+		ByteBufferPool pool = ((NetworkManagerImpl<C>) manager).getByteBufferPool();
+		Reference<ByteBuffer> outRef = pool.get(frame.remaining());
+		ByteBuffer out = outRef.get();
+		out.position(headerSize);
+		if (!compressor.compress(slice(frame, headerSize, bodySize), out)) {
+			pool.put(outRef);
+			return ref;
+		}
+		ByteBuffer header = slice(out, 0, headerSize);
+		header.put(slice(frame, 0, headerSize));
+		header.flip();
+		compressor.getProvider().setCompressed(header, true, out.position() - headerSize);
+		out.flip();
+		pool.put(ref);
+		return outRef;
+	}
+	
+	private void startChunks(ChunkedDecoder<Packet<C>, C> decoder, ByteBuffer header, int bodySize) {
+		chunkDecoder = decoder;
+		chunkHeader = header;
+		chunkOffset = 0;
+		chunkRemaining = bodySize;
+	}
+	
+	/**
+	 * Passes the next chunk of the current body to the chunked decoder.  Once the final chunk has been decoded, 
+	 * the decoder seeks the next header.
+	 * 
+	 * @param chunk the chunk
+	 * @return the decoded packet
+	 * @throws IOException
+	 */
+	private Packet<C> decodeChunk(ByteBuffer chunk) throws IOException {
+		int length = chunk.remaining();
+		chunkRemaining -= length;
+		boolean last = chunkRemaining == 0;
+		Packet<C> p = chunkDecoder.decodeChunk(chunkHeader.duplicate(), chunk, chunkOffset, last);
+		if (p == null) {
+			throw new IOException("Decoding failed for packet chunk");
+		}
+		chunkOffset += length;
+		if (last) {
+			chunkDecoder = null;
+			chunkHeader = null;
+			seeking = true;
+		}
+		return p;
+	}
+	
+	private static ByteBuffer slice(ByteBuffer buf, int position, int length) {
+		ByteBuffer slice = buf.duplicate();
+		slice.limit(position + length);
+		slice.position(position);
+		return slice.slice();
+	}
+	
+	public boolean hasBufferedFrame() {
+		ByteBuffer buf = receive;
+		if (buf == null || !buf.hasRemaining()) {
+			return false;
+		}
+		if (chunkDecoder != null) {
+			return buf.remaining() >= Math.min(((NetworkManagerImpl<C>) manager).getConfig().getChunkSize(), chunkRemaining);
+		}
+		ByteBuffer view = buf.duplicate();
+		if (seeking && !protocol.seekToHeader(view)) {
+			return false;
+		}
+		int headerSize = protocol.getPacketHeaderSize();
+		if (view.remaining() < headerSize) {
+			return false;
+		}
+		int bodySize = protocol.getPacketBodySize(slice(view, view.position(), headerSize));
+		return bodySize < 0 || view.remaining() >= headerSize + bodySize;
+	}
+	
+	private boolean queuePacket(Packet<C> p) {
+		boolean accepting = channelControl == null || channelControl.inboundQueued();
+		handlerQueue.offer(new PacketWrapper<C>(connection, p) {
+			@Override
+			public void handled() {
+				if (channelControl != null) {
+					channelControl.inboundHandled();
+				}
+			}
+		});
+		return accepting;
+	}
+
+	public long getReadBudgetHits() {
+		return readBudgetHits;
+	}
+
 	public int write(WritableByteChannel channel) throws IOException {
+		if (!writeLock.compareAndSet(false, true)) {
+			// The channel is being closed and its write state released
+			return 0;
+		}
+		try {
+			return writeLocked(channel);
+		} finally {
+			writeLock.set(false);
+			if (closed) {
+				releaseWrites();
+			}
+		}
+	}
+	
+	private int writeLocked(WritableByteChannel channel) throws IOException {
+		
+		if (gatherCount > 0 || (write == null && channel instanceof GatheringByteChannel && ((NetworkManagerImpl<C>) manager).getConfig().getWriteGatherPackets() > 1)) {
+			return writeGathering((GatheringByteChannel) channel);
+		}
 		
 		int i = 0;
 		
 		boolean blocked = false;
 		while (!blocked) {
+			if (transfer != null) {
+				long written = transfer(channel);
+				i += written;
+				blocked = written == 0 && transfer != null;
+				continue;
+			}
 			if (write == null) {
 				Packet<C> p;
 				if (shutdown || (p = writeQueue.poll()) == null) {
@@ -147,27 +620,40 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 				}
 				if (p == shutdownPacket) {
 					shutdown = true;
-					if (channel instanceof SocketChannel) {
+					if (channel instanceof SocketChannel || channel instanceof TlsChannel) {
 						channelControl.close();
 					}
 					continue;
 				}
-				Encoder<Packet<C>, C> e = protocol.getPacketEncoder(p);
-				if (e == null) {
-					throw new IOException("No encoder found for packet");
+				if (p instanceof SerdesImpl.Transfer) {
+					transfer = (Transfer) p;
+					continue;
+				}
+				if (p instanceof SerdesImpl.SharedPacket) {
+					writeShared = ((SharedPacket) p).buffer;
+					write = writeShared.duplicate();
+					writeSize = write.remaining();
+				} else {
+					SizedPacket s = (SizedPacket) p;
+					Encoder<Packet<C>, C> e = getEncoder(s);
+					int size = s.size;
+					writeRef = ((NetworkManagerImpl<C>) manager).getByteBufferPool().get(size);
+					write = writeRef.get();
+					writeSize = size;
+					e.encode(s.packet, write);
+					write.flip();
+					writeRef = compress(writeRef);
+					write = writeRef.get();
 				}
-				int size = protocol.getPacketHeaderSize() + e.getPacketBodySize(p);
-				writeRef = ((NetworkManagerImpl<C>) manager).getByteBufferPool().get(size);
-				write = writeRef.get();
-				e.encode(p, write);
-				write.flip();
 			}
 			int written = channel.write(write);
 			
 			if (!write.hasRemaining()) {
-				((NetworkManagerImpl<C>) manager).getByteBufferPool().put(writeRef);
+				releaseBuffer(writeRef, writeShared);
 				write = null;
 				writeRef = null;
+				writeShared = null;
+				outboundRemoved(writeSize);
 			}
 			
 			i += written;
@@ -177,13 +663,559 @@ public class SerdesImpl<C extends Connection<C>> implements Serdes<C> {
 		return i;
 	}
 	
+	/**
+	 * Writes queued packets in batches, with each batch sent by a single gathering write.  Buffers are 
+	 * returned to the pool as soon as they are fully written, so a partial write resumes from the first 
+	 * buffer with data remaining.
+	 * 
+	 * @param channel the channel
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	private int writeGathering(GatheringByteChannel channel) throws IOException {
+		
+		int i = 0;
+		
+		while (true) {
+			if (gatherCount == 0) {
+				if (transfer != null) {
+					long written = transfer(channel);
+					i += written;
+					if (written == 0 && transfer != null) {
+						return i;
+					}
+					continue;
+				}
+				if (!fillGather(channel)) {
+					return i;
+				}
+				if (gatherCount == 0) {
+					continue;
+				}
+			}
+			long written = channel.write(gather, gatherOffset, gatherCount - gatherOffset);
+			
+			while (gatherOffset < gatherCount && !gather[gatherOffset].hasRemaining()) {
+				releaseBuffer(gatherRefs[gatherOffset], gatherShared[gatherOffset]);
+				gather[gatherOffset] = null;
+				gatherRefs[gatherOffset] = null;
+				gatherShared[gatherOffset] = null;
+				outboundRemoved(gatherSizes[gatherOffset]);
+				gatherOffset++;
+			}
+			
+			if (gatherOffset == gatherCount) {
+				gatherOffset = 0;
+				gatherCount = 0;
+				if (closeAfterGather) {
+					closeAfterGather = false;
+					channelControl.close();
+				}
+			}
+			
+			i += written;
+			if (written == 0) {
+				return i;
+			}
+		}
+	}
+	
+	/**
+	 * Encodes queued packets into the gather buffers
+	 * 
+	 * @param channel the channel
+	 * @return false if there was nothing to write
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean fillGather(WritableByteChannel channel) throws IOException {
+		NetworkConfig config = ((NetworkManagerImpl<C>) manager).getConfig();
+		int maxPackets = config.getWriteGatherPackets();
+		int maxBytes = config.getWriteGatherBytes();
+		if (gather == null || gather.length < maxPackets) {
+			gather = new ByteBuffer[maxPackets];
+			gatherRefs = new Reference[maxPackets];
+			gatherShared = new SharedBuffer[maxPackets];
+			gatherSizes = new int[maxPackets];
+		}
+		int bytes = 0;
+		while (gatherCount < maxPackets && (maxBytes == 0 || bytes < maxBytes)) {
+			Packet<C> p;
+			if (shutdown || (p = writeQueue.poll()) == null) {
+				if (gatherCount > 0) {
+					break;
+				}
+				channelControl.clearWriteRequest();
+				p = writeQueue.poll();
+				if (shutdown || p == null) {
+					return false;
+				}
+			}
+			if (p == shutdownPacket) {
+				shutdown = true;
+				if (channel instanceof SocketChannel || channel instanceof TlsChannel) {
+					if (gatherCount > 0) {
+						closeAfterGather = true;
+					} else {
+						channelControl.close();
+					}
+				}
+				continue;
+			}
+			if (p instanceof SerdesImpl.Transfer) {
+				transfer = (Transfer) p;
+				break;
+			}
+			int size;
+			if (p instanceof SerdesImpl.SharedPacket) {
+				SharedBuffer shared = ((SharedPacket) p).buffer;
+				gatherShared[gatherCount] = shared;
+				gather[gatherCount] = shared.duplicate();
+				size = shared.size();
+			} else {
+				SizedPacket s = (SizedPacket) p;
+				Encoder<Packet<C>, C> e = getEncoder(s);
+				size = s.size;
+				Reference<ByteBuffer> ref = ((NetworkManagerImpl<C>) manager).getByteBufferPool().get(size);
+				ByteBuffer buf = ref.get();
+				e.encode(s.packet, buf);
+				buf.flip();
+				ref = compress(ref);
+				buf = ref.get();
+				gatherRefs[gatherCount] = ref;
+				gather[gatherCount] = buf;
+			}
+			gatherSizes[gatherCount] = size;
+			gatherCount++;
+			bytes += size;
+		}
+		return gatherCount > 0 || transfer != null;
+	}
+	
+	/**
+	 * Writes the next part of the current transfer to the channel.  The transfer is cleared once it has been 
+	 * completely sent.
+	 * 
+	 * @param channel the channel
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	private long transfer(WritableByteChannel channel) throws IOException {
+		Transfer t = transfer;
+		long written = t.transfer(channel);
+		outboundRemoved(written);
+		if (t.remaining() == 0) {
+			t.release();
+			transfer = null;
+		}
+		return written;
+	}
+	
+	private void releaseBuffer(Reference<ByteBuffer> ref, SharedBuffer shared) {
+		if (shared != null) {
+			shared.release();
+		} else {
+			((NetworkManagerImpl<C>) manager).getByteBufferPool().put(ref);
+		}
+	}
+	
+	private Encoder<Packet<C>, C> getEncoder(SizedPacket p) throws IOException {
+		Encoder<Packet<C>, C> e = p.encoder;
+		if (e == null) {
+			throw new IOException("No encoder found for packet");
+		}
+		return e;
+	}
+	
+	public void writeFile(FileChannel file, long position, long length) {
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		if (position < 0 || length < 0) {
+			throw new IllegalArgumentException("File region position and length cannot be negative");
+		}
+		offerPacket(new FileRegion(file, position, length));
+	}
+	
+	public void writeShared(SharedBuffer buffer) {
+		if (closed) {
+			return;
+		}
+		buffer.retain();
+		SharedPacket p = new SharedPacket(buffer);
+		if (!offerPacket(p)) {
+			buffer.release();
+		} else if (closed && writeQueue.remove(p)) {
+			buffer.release();
+		}
+	}
+	
+	public void closed() {
+		closed = true;
+		cancelFlush();
+		Iterator<Packet<C>> i = writeQueue.iterator();
+		while (i.hasNext()) {
+			Packet<C> p = i.next();
+			if (p instanceof SerdesImpl.SharedPacket && writeQueue.remove(p)) {
+				((SharedPacket) p).buffer.release();
+			} else if (p instanceof SerdesImpl.Transfer && writeQueue.remove(p)) {
+				((Transfer) p).release();
+			}
+		}
+		releaseWrites();
+	}
+	
+	/**
+	 * Releases the packet being written, the gather buffers and the current transfer.  If a write is in progress, 
+	 * they are released by the write thread when the write returns.
+	 */
+	private void releaseWrites() {
+		if (!writeLock.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			if (write != null) {
+				releaseBuffer(writeRef, writeShared);
+				write = null;
+				writeRef = null;
+				writeShared = null;
+			}
+			for (int j = gatherOffset; j < gatherCount; j++) {
+				releaseBuffer(gatherRefs[j], gatherShared[j]);
+				gather[j] = null;
+				gatherRefs[j] = null;
+				gatherShared[j] = null;
+			}
+			gatherOffset = 0;
+			gatherCount = 0;
+			if (transfer != null) {
+				transfer.release();
+				transfer = null;
+			}
+		} finally {
+			writeLock.set(false);
+		}
+	}
+	
 	public void writePacket(Packet<C> p) {
+		if (p == shutdownPacket) {
+			offerPacket(p);
+			return;
+		}
+		Encoder<Packet<C>, C> e = protocol.getPacketEncoder(p);
+		if (e instanceof StreamingEncoder) {
+			ChainTransfer t = encodeChain(p, (StreamingEncoder<Packet<C>, C>) e);
+			if (!offerPacket(t)) {
+				t.release();
+			} else if (closed && writeQueue.remove(t)) {
+				t.release();
+			}
+			return;
+		}
+		offerPacket(new SizedPacket(p, e));
+	}
+	
+	private ChainTransfer encodeChain(Packet<C> p, StreamingEncoder<Packet<C>, C> e) {
+		NetworkManagerImpl<C> managerImpl = (NetworkManagerImpl<C>) manager;
+		BufferChain chain = new BufferChain(managerImpl.getByteBufferPool(), managerImpl.getConfig().getStreamingBufferSize());
+		try {
+			int headerSize = protocol.getPacketHeaderSize();
+			ByteBuffer header = chain.reserve(headerSize);
+			e.encodeBody(p, chain);
+			e.encodeHeader(p, chain.size() - headerSize, header);
+		} catch (RuntimeException ex) {
+			chain.release();
+			throw ex;
+		}
+		return new ChainTransfer(chain);
+	}
+	
+	/**
+	 * Adds a packet to the write queue
+	 * 
+	 * @param p the packet
+	 * @return false if the packet was dropped
+	 */
+	private boolean offerPacket(Packet<C> p) {
+		long size = 0;
+		if (p != shutdownPacket) {
+			if (unwritable.get() && getOutboundOverflowPolicy() == OutboundOverflowPolicy.DROP && isOutboundStalled(System.nanoTime())) {
+				((NetworkManagerImpl<C>) manager).outboundDropped();
+				return false;
+			}
+			size = getPacketSize(p);
+			outboundAdded(size);
+		}
 		writeQueue.add(p);
+		long delay = corkDelay;
+		if (p == shutdownPacket || delay <= 0) {
+			channelControl.setWriteRequest();
+			return true;
+		}
+		int threshold = corkBytes;
+		if (threshold > 0 && corkedBytes.addAndGet(size) >= threshold) {
+			flush();
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			flushTimeout.set(channelControl.scheduleFlush(delay));
+		}
+		return true;
+	}
+	
+	public void setWriteCork(int bytes, long delay) {
+		if (bytes < 0 || delay < 0) {
+			throw new IllegalArgumentException("Write cork limits cannot be negative");
+		}
+		long oldDelay = corkDelay;
+		this.corkBytes = bytes;
+		this.corkDelay = delay;
+		if (delay == 0 && oldDelay > 0) {
+			flush();
+		}
+	}
+	
+	public void flush() {
+		corkedBytes.set(0);
+		flushScheduled.set(false);
+		cancelFlush();
 		channelControl.setWriteRequest();
 	}
+	
+	/**
+	 * Cancels the scheduled cork flush, if any
+	 */
+	private void cancelFlush() {
+		Timeout timeout = flushTimeout.getAndSet(null);
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+	
+	public boolean isWritable() {
+		return !unwritable.get();
+	}
+	
+	public boolean isOutboundStalled(long now) {
+		if (!unwritable.get() || getOutboundOverflowPolicy() == OutboundOverflowPolicy.NONE) {
+			return false;
+		}
+		return now - unwritableSince > TimeUnit.MILLISECONDS.toNanos(((NetworkManagerImpl<C>) manager).getConfig().getOutboundStallTimeout());
+	}
+	
+	private OutboundOverflowPolicy getOutboundOverflowPolicy() {
+		return ((NetworkManagerImpl<C>) manager).getConfig().getOutboundOverflowPolicy();
+	}
+	
+	private long getPacketSize(Packet<C> p) {
+		if (p instanceof SerdesImpl.Transfer) {
+			return ((Transfer) p).remaining();
+		}
+		if (p instanceof SerdesImpl.SharedPacket) {
+			return ((SharedPacket) p).buffer.size();
+		}
+		return ((SizedPacket) p).size;
+	}
+	
+	private void outboundAdded(long size) {
+		long count = outboundBytes.addAndGet(size);
+		long high = ((NetworkManagerImpl<C>) manager).getConfig().getOutboundHighWatermark();
+		if (high > 0 && count >= high && unwritable.compareAndSet(false, true)) {
+			unwritableSince = System.nanoTime();
+			if (outboundBytes.get() <= ((NetworkManagerImpl<C>) manager).getConfig().getOutboundLowWatermark()) {
+				unwritable.set(false);
+			}
+			notifyWritability();
+		}
+	}
+	
+	private void outboundRemoved(long size) {
+		if (outboundBytes.addAndGet(-size) <= ((NetworkManagerImpl<C>) manager).getConfig().getOutboundLowWatermark()) {
+			setWritable();
+		}
+	}
+	
+	private void setWritable() {
+		if (unwritable.compareAndSet(true, false)) {
+			notifyWritability();
+		}
+	}
+	
+	/**
+	 * Notifies the connection that its writability has changed.  The state can be changed by both the producer 
+	 * and the write thread, so only one thread delivers notifications at a time.  That thread checks the state 
+	 * again after each notification, so the last notification always matches the current state.
+	 */
+	private void notifyWritability() {
+		while (unwritable.get() == notifiedWritable && notifying.compareAndSet(false, true)) {
+			try {
+				boolean writable = !unwritable.get();
+				if (writable != notifiedWritable) {
+					notifiedWritable = writable;
+					connection.writabilityChanged(writable);
+				}
+			} finally {
+				notifying.set(false);
+			}
+		}
+	}
 
 	public void shutdown() {
 		writePacket(shutdownPacket);
 	}
 
+	/**
+	 * Data which is written directly to the channel by the transfer itself, rather than being encoded
+	 */
+	private abstract class Transfer implements Packet<C> {
+		
+		/**
+		 * Writes as much of the remaining data as the channel accepts
+		 * 
+		 * @param channel the channel
+		 * @return the number of bytes written
+		 * @throws IOException
+		 */
+		public abstract long transfer(WritableByteChannel channel) throws IOException;
+		
+		/**
+		 * Gets the number of bytes still to be written
+		 * 
+		 * @return the number of bytes
+		 */
+		public abstract long remaining();
+		
+		/**
+		 * Releases any buffers held by the transfer
+		 */
+		public void release() {
+		}
+
+		public Protocol<C> getProtocol() {
+			return protocol;
+		}
+
+		public int getStripeId() {
+			return 0;
+		}
+		
+	}
+	
+	/**
+	 * A region of a file which is sent with FileChannel.transferTo()
+	 */
+	private class FileRegion extends Transfer {
+		
+		private final FileChannel file;
+		private long position;
+		private long remaining;
+		
+		public FileRegion(FileChannel file, long position, long length) {
+			this.file = file;
+			this.position = position;
+			this.remaining = length;
+		}
+		
+		public long transfer(WritableByteChannel channel) throws IOException {
+			long written = remaining == 0 ? 0 : file.transferTo(position, remaining, channel);
+			if (written == 0 && remaining > 0 && position >= file.size()) {
+				throw new IOException("File region extends past the end of the file");
+			}
+			position += written;
+			remaining -= written;
+			return written;
+		}
+		
+		public long remaining() {
+			return remaining;
+		}
+		
+	}
+	
+	/**
+	 * A packet encoded by a streaming encoder, which is sent with a gathering write
+	 */
+	private class ChainTransfer extends Transfer {
+		
+		private final BufferChain chain;
+		private final ByteBuffer[] buffers;
+		private int offset;
+		private long remaining;
+		
+		public ChainTransfer(BufferChain chain) {
+			this.chain = chain;
+			this.buffers = chain.flip();
+			this.remaining = chain.size();
+		}
+		
+		public long transfer(WritableByteChannel channel) throws IOException {
+			long written;
+			if (channel instanceof GatheringByteChannel) {
+				written = ((GatheringByteChannel) channel).write(buffers, offset, buffers.length - offset);
+			} else {
+				written = channel.write(buffers[offset]);
+			}
+			while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+				offset++;
+			}
+			remaining -= written;
+			return written;
+		}
+		
+		public long remaining() {
+			return remaining;
+		}
+		
+		@Override
+		public void release() {
+			chain.release();
+		}
+		
+	}
+
+	/**
+	 * A packet which is waiting to be encoded.  The encoder and encoded size are found when the packet is queued, 
+	 * so they are not looked up again when it is written.
+	 */
+	private class SizedPacket implements Packet<C> {
+		
+		private final Packet<C> packet;
+		private final Encoder<Packet<C>, C> encoder;
+		private final int size;
+		
+		public SizedPacket(Packet<C> packet, Encoder<Packet<C>, C> encoder) {
+			this.packet = packet;
+			this.encoder = encoder;
+			this.size = protocol.getPacketHeaderSize() + (encoder == null ? 0 : encoder.getPacketBodySize(packet));
+		}
+
+		public Protocol<C> getProtocol() {
+			return protocol;
+		}
+
+		public int getStripeId() {
+			return packet.getStripeId();
+		}
+		
+	}
+
+	/**
+	 * A packet which has already been encoded into a shared buffer
+	 */
+	private class SharedPacket implements Packet<C> {
+		
+		private final SharedBuffer buffer;
+		
+		public SharedPacket(SharedBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public Protocol<C> getProtocol() {
+			return protocol;
+		}
+
+		public int getStripeId() {
+			return 0;
+		}
+		
+	}
+
 }
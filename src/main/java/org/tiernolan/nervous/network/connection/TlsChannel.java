@@ -0,0 +1,472 @@
+package org.tiernolan.nervous.network.connection;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+import org.tiernolan.nervous.network.bufferpool.ByteBufferPool;
+
+/**
+ * A channel which encrypts data written to, and decrypts data read from, a socket channel using an SSLEngine.<br>
+ * <br>
+ * The network and application buffers are taken from the buffer pool when they are needed and returned once they
+ * are empty, so idle connections do not hold any buffers.  Delegated handshake tasks are run on the executor,
+ * and a write is requested once they complete, so that the handshake can continue.  Until then, reads and writes
+ * return without making progress.<br>
+ * <br>
+ * The handshake state used to set the interest ops is cached, so the selector thread never waits for the engine
+ * while a delegated task is running.  For the same reason, a close never waits for a read or write to finish.  If
+ * one is in progress, the close is completed by that thread when it returns.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+	/**
+	 * The buffer size required for a TLS record, including the record overhead
+	 */
+	public final static int BUFFER_SIZE = 17 * 1024;
+
+	private final static ByteBuffer[] EMPTY = new ByteBuffer[] {ByteBuffer.allocate(0)};
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final ByteBufferPool pool;
+	private final Executor executor;
+	private final ChannelControl channelControl;
+	private final AtomicBoolean taskPending = new AtomicBoolean(false);
+	private volatile HandshakeStatus handshakeStatus;
+
+	private final PooledBuffer netIn = new PooledBuffer();
+	private final PooledBuffer appIn = new PooledBuffer();
+	private final PooledBuffer netOut = new PooledBuffer();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile boolean closeRequested;
+
+	private boolean inputClosed;
+	private boolean closed;
+
+	public TlsChannel(SocketChannel channel, SSLEngine engine, ByteBufferPool pool, Executor executor, ChannelControl channelControl) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+		this.pool = pool;
+		this.executor = executor;
+		this.channelControl = channelControl;
+		engine.beginHandshake();
+		this.handshakeStatus = engine.getHandshakeStatus();
+	}
+
+	public SSLEngine getEngine() {
+		return engine;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return -1;
+			}
+			return readLocked(dst);
+		} finally {
+			unlock();
+		}
+	}
+
+	private int readLocked(ByteBuffer dst) throws IOException {
+		try {
+			while (true) {
+				if (!appIn.isEmpty()) {
+					return drain(dst);
+				}
+				if (inputClosed) {
+					return -1;
+				}
+				if (!handshake()) {
+					// Data is moved into the network buffer while the handshake is blocked, so the selector does
+					// not keep reporting the channel as readable
+					if (taskPending.get()) {
+						ByteBuffer in = netIn.get(packetBufferSize());
+						if (in.hasRemaining() && channel.read(in) < 0) {
+							inputClosed = true;
+						}
+					}
+					return 0;
+				}
+				ByteBuffer in = netIn.get(packetBufferSize());
+				ByteBuffer app = appIn.get(engine.getSession().getApplicationBufferSize());
+				SSLEngineResult result;
+				in.flip();
+				try {
+					result = engine.unwrap(in, app);
+				} finally {
+					in.compact();
+				}
+				updateStatus(result);
+				switch (result.getStatus()) {
+					case CLOSED:
+						inputClosed = true;
+						break;
+					case BUFFER_OVERFLOW:
+						if (appIn.isEmpty()) {
+							appIn.get(app.capacity() + engine.getSession().getApplicationBufferSize());
+						}
+						break;
+					case BUFFER_UNDERFLOW:
+						if (!in.hasRemaining()) {
+							in = netIn.get(in.capacity() + packetBufferSize());
+						}
+						int r = channel.read(in);
+						if (r < 0) {
+							inputClosed = true;
+						} else if (r == 0) {
+							return 0;
+						}
+						break;
+					default:
+						break;
+				}
+			}
+		} finally {
+			netIn.releaseIfEmpty();
+			appIn.releaseIfEmpty();
+		}
+	}
+
+	private int drain(ByteBuffer dst) {
+		ByteBuffer app = appIn.buf;
+		app.flip();
+		int length = Math.min(app.remaining(), dst.remaining());
+		ByteBuffer part = app.duplicate();
+		part.limit(app.position() + length);
+		dst.put(part);
+		app.position(app.position() + length);
+		app.compact();
+		return length;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] {src}, 0, 1);
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+			return writeLocked(srcs, offset, length);
+		} finally {
+			unlock();
+		}
+	}
+
+	private long writeLocked(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long written = 0;
+		try {
+			while (handshake() && handshakeStatus == HandshakeStatus.NOT_HANDSHAKING && hasRemaining(srcs, offset, length)) {
+				SSLEngineResult result = wrap(srcs, offset, length);
+				if (result.getStatus() == Status.CLOSED) {
+					throw new IOException("TLS session has been closed");
+				}
+				written += result.bytesConsumed();
+			}
+		} finally {
+			netOut.releaseIfEmpty();
+		}
+		return written;
+	}
+
+	/**
+	 * Writes any pending encrypted data and continues the handshake as far as possible without reading
+	 *
+	 * @return false if the handshake is waiting for a delegated task or for encrypted data to be written
+	 * @throws IOException
+	 */
+	public boolean progress() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+			return handshake();
+		} finally {
+			netOut.releaseIfEmpty();
+			unlock();
+		}
+	}
+
+	/**
+	 * Releases the lock, and completes any close which was requested while it was held
+	 */
+	private void unlock() {
+		lock.unlock();
+		if (closeRequested && lock.tryLock()) {
+			try {
+				closeLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private boolean handshake() throws IOException {
+		while (true) {
+			if (taskPending.get() || !flush()) {
+				return false;
+			}
+			HandshakeStatus status = engine.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+				return false;
+			} else if (status == HandshakeStatus.NEED_WRAP) {
+				SSLEngineResult result = wrap(EMPTY, 0, 1);
+				if (result.bytesProduced() == 0) {
+					return true;
+				}
+			} else {
+				handshakeStatus = status;
+				return true;
+			}
+		}
+	}
+
+	private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		while (true) {
+			ByteBuffer out = netOut.get(packetBufferSize());
+			SSLEngineResult result = engine.wrap(srcs, offset, length, out);
+			updateStatus(result);
+			if (result.getStatus() != Status.BUFFER_OVERFLOW) {
+				return result;
+			}
+			if (!netOut.isEmpty()) {
+				return result;
+			}
+			netOut.get(out.capacity() + packetBufferSize());
+		}
+	}
+
+	/**
+	 * Writes pending encrypted data to the socket
+	 *
+	 * @return true if there is no more data to write
+	 * @throws IOException
+	 */
+	private boolean flush() throws IOException {
+		if (netOut.isEmpty()) {
+			return true;
+		}
+		ByteBuffer out = netOut.buf;
+		out.flip();
+		try {
+			channel.write(out);
+		} finally {
+			out.compact();
+		}
+		return netOut.isEmpty();
+	}
+
+	private void runDelegatedTasks() {
+		if (!taskPending.compareAndSet(false, true)) {
+			return;
+		}
+		handshakeStatus = HandshakeStatus.NEED_TASK;
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+				} finally {
+					handshakeStatus = engine.getHandshakeStatus();
+					taskPending.set(false);
+					channelControl.setWriteRequest();
+				}
+			}
+		});
+	}
+
+	private void updateStatus(SSLEngineResult result) {
+		HandshakeStatus status = result.getHandshakeStatus();
+		handshakeStatus = status == HandshakeStatus.FINISHED ? HandshakeStatus.NOT_HANDSHAKING : status;
+	}
+
+	private int packetBufferSize() {
+		return engine.getSession().getPacketBufferSize();
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if decrypted data, or a complete record, is buffered and can be read without the socket being
+	 * readable.  This method does not wait for the engine, so it may be called by the selector thread.
+	 *
+	 * @return true if there is buffered data to read
+	 */
+	public boolean hasBufferedData() {
+		if (taskPending.get() || !netOut.isEmpty()) {
+			return false;
+		}
+		if (!appIn.isEmpty()) {
+			return true;
+		}
+		ByteBuffer in = netIn.buf;
+		if (in == null) {
+			return false;
+		}
+		int position = in.position();
+		return position >= 5 && position >= 5 + (((in.get(3) & 0xFF) << 8) | (in.get(4) & 0xFF));
+	}
+
+	/**
+	 * Checks if the channel has encrypted data, or handshake messages, to write.  This method does not wait for
+	 * the engine, so it may be called by the selector thread.
+	 *
+	 * @return true if a write is required
+	 */
+	public boolean needsWrite() {
+		return !netOut.isEmpty() || handshakeStatus == HandshakeStatus.NEED_WRAP;
+	}
+
+	/**
+	 * Checks if application data cannot be written until the handshake receives data from the peer or a
+	 * delegated task completes.  This method does not wait for the engine, so it may be called by the selector
+	 * thread.
+	 *
+	 * @return true if writes are blocked by the handshake
+	 */
+	public boolean isWriteBlocked() {
+		HandshakeStatus status = handshakeStatus;
+		return netOut.isEmpty() && (status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_TASK);
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Sends a close notification, if it can be written without blocking, and returns the buffers to the pool.
+	 * The socket channel is not closed.<br>
+	 * <br>
+	 * This method does not block.  If a read or write is in progress, the close is completed by that thread once
+	 * it returns.
+	 */
+	public void close() {
+		closeRequested = true;
+		if (lock.tryLock()) {
+			try {
+				closeLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void closeLocked() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (!taskPending.get() && channel.isOpen()) {
+				engine.closeOutbound();
+				if (flush()) {
+					wrap(EMPTY, 0, 1);
+					flush();
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			netIn.release();
+			appIn.release();
+			netOut.release();
+		}
+	}
+
+	/**
+	 * A buffer which is taken from the pool when required.  The buffer is always kept in write mode, so it is
+	 * empty when its position is zero.
+	 */
+	private class PooledBuffer {
+
+		private Reference<ByteBuffer> ref;
+		private ByteBuffer buf;
+
+		/**
+		 * Gets the buffer, taking one from the pool if required.  If the buffer is too small, its data is moved
+		 * to a larger buffer.
+		 *
+		 * @param size the minimum capacity
+		 * @return the buffer
+		 */
+		public ByteBuffer get(int size) {
+			if (buf == null) {
+				allocate(size);
+			} else if (buf.capacity() < size) {
+				Reference<ByteBuffer> oldRef = ref;
+				ByteBuffer old = buf;
+				allocate(size);
+				old.flip();
+				buf.put(old);
+				if (oldRef != null) {
+					pool.put(oldRef);
+				}
+			}
+			return buf;
+		}
+
+		private void allocate(int size) {
+			if (size <= pool.getMaxSize()) {
+				ref = pool.get(size);
+				buf = ref.get();
+				buf.limit(buf.capacity());
+			} else {
+				ref = null;
+				buf = ByteBuffer.allocateDirect(size);
+			}
+		}
+
+		public boolean isEmpty() {
+			ByteBuffer b = buf;
+			return b == null || b.position() == 0;
+		}
+
+		public void releaseIfEmpty() {
+			if (buf != null && buf.position() == 0) {
+				release();
+			}
+		}
+
+		public void release() {
+			if (ref != null) {
+				pool.put(ref);
+			}
+			ref = null;
+			buf = null;
+		}
+
+	}
+
+}
@@ -22,6 +22,12 @@ public class PacketWrapper<C extends Connection<C>> implements Striped {
 		return connection;
 	}
 
+	/**
+	 * Called after the packet has been handled
+	 */
+	public void handled() {
+	}
+
 	public int getStripeId() {
 		return packet.getStripeId();
 	}
@@ -2,6 +2,8 @@ package org.tiernolan.nervous.network.queue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
@@ -21,15 +23,37 @@ public class StripedExecutor<C extends Connection<C>> {
 	private final StripedQueue<PacketWrapper<C>> queue;
 	private final AtomicReferenceArray<PoolThread> threads;
 	private final AtomicBoolean running = new AtomicBoolean(true);
+	private final ExecutorService taskExecutor;
 	
 	public StripedExecutor(NetworkManager<C> manager, StripedQueue<PacketWrapper<C>> queue) {
 		this(manager, queue, Runtime.getRuntime().availableProcessors());
 	}
 
 	public StripedExecutor(NetworkManager<C> manager, StripedQueue<PacketWrapper<C>> queue, int poolSize) {
+		this(manager, queue, poolSize, null);
+	}
+	
+	/**
+	 * Creates a striped executor which uses a single dispatch thread to submit each packet to the task executor.  
+	 * A stripe is not released by the queue until its current packet is done, so packets in the same stripe are 
+	 * still handled serially.  The task executor is shut down when the striped executor is shut down.
+	 * 
+	 * @param manager
+	 * @param queue
+	 * @param taskExecutor the executor used to run handlers, normally one thread per task
+	 */
+	public StripedExecutor(NetworkManager<C> manager, StripedQueue<PacketWrapper<C>> queue, ExecutorService taskExecutor) {
+		this(manager, queue, 1, taskExecutor);
+		if (taskExecutor == null) {
+			throw new NullPointerException();
+		}
+	}
+	
+	private StripedExecutor(NetworkManager<C> manager, StripedQueue<PacketWrapper<C>> queue, int poolSize, ExecutorService taskExecutor) {
 		this.queue = queue;
 		this.manager = manager;
 		this.protocol = manager.getProtocol();
+		this.taskExecutor = taskExecutor;
 		this.threads = new AtomicReferenceArray<PoolThread>(poolSize);
 		for (int i = 0; i < poolSize; i++) {
 			addThread(null, i);
@@ -55,6 +79,9 @@ public class StripedExecutor<C extends Connection<C>> {
 				for (int i = 0; i < threads.length(); i++) {
 					threads.get(i).interrupt();
 				}
+				if (taskExecutor != null) {
+					taskExecutor.shutdown();
+				}
 			}
 		}
 	}
@@ -67,6 +94,65 @@ public class StripedExecutor<C extends Connection<C>> {
 		return list;
 	}
 	
+	private void handle(Completable<PacketWrapper<C>> c) {
+		PacketWrapper<C> w = null;
+		try {
+			w = c.getStriped();
+			if (w == null) {
+				manager.getLogger().info("Retrieved null packet wrapper from queue");
+				return;
+			}
+			Packet<C> p = w.getPacket();
+			Connection<C> conn = w.getConnection();
+			Handler<Packet<C>, C> handler;
+			try {
+				handler = protocol.getPacketHandler(p);
+			} catch (Throwable t) {
+				manager.getLogger().info("Protocol threw " + t + " when trying to determine handler for " + p);
+				try {
+					conn.shutdown();
+				} catch (Throwable t2) {
+					manager.getLogger().info("Connection threw " + t2 + " when trying to shutdown after " + t + " was thrown");
+				}
+				return;
+			}
+			try {
+				handler.handle(conn, p);
+			} catch (Throwable t) {
+				manager.getLogger().info("Handler threw " + t + " when trying to handler " + p);
+				try {
+					conn.shutdown();
+				} catch (Throwable t2) {
+					manager.getLogger().info("Connection threw " + t2 + " when trying to shutdown after " + t + " was thrown");
+				}
+				return;
+			}
+		} finally {
+			if (w != null) {
+				w.handled();
+			}
+			c.done();
+		}
+	}
+	
+	/**
+	 * Releases a packet which could not be handled, so that its stripe and the inbound queue are released in the 
+	 * same way as after handling.
+	 * 
+	 * @param c the completable
+	 */
+	private void drop(Completable<PacketWrapper<C>> c) {
+		try {
+			PacketWrapper<C> w = c.getStriped();
+			if (w != null) {
+				manager.getLogger().info("Task executor rejected " + w.getPacket() + ", packet dropped");
+				w.handled();
+			}
+		} finally {
+			c.done();
+		}
+	}
+	
 	private class PoolThread extends Thread {
 				
 		private final int index;
@@ -79,7 +165,7 @@ public class StripedExecutor<C extends Connection<C>> {
 		public void run() {
 			try {
 				while (running.get()) {
-					Completable<PacketWrapper<C>> c;
+					final Completable<PacketWrapper<C>> c;
 					try {
 						c = queue.take();
 					} catch (InterruptedException e) {
@@ -89,39 +175,18 @@ public class StripedExecutor<C extends Connection<C>> {
 						manager.getLogger().info("Retrieved null completable from queue");
 						continue;
 					}
+					if (taskExecutor == null) {
+						handle(c);
+						continue;
+					}
 					try {
-						PacketWrapper<C> w = c.getStriped();
-						if (w == null) {
-							manager.getLogger().info("Retrieved null packet wrapper from queue");
-							continue;
-						}
-						Packet<C> p = w.getPacket();
-						Connection<C> conn = w.getConnection();
-						Handler<Packet<C>, C> handler;
-						try {
-							handler = protocol.getPacketHandler(p);
-						} catch (Throwable t) {
-							manager.getLogger().info("Protocol threw " + t + " when trying to determine handler for " + p);
-							try {
-								conn.shutdown();
-							} catch (Throwable t2) {
-								manager.getLogger().info("Connection threw " + t2 + " when trying to shutdown after " + t + " was thrown");
-							}
-							continue;
-						}
-						try {
-							handler.handle(conn, p);
-						} catch (Throwable t) {
-							manager.getLogger().info("Handler threw " + t + " when trying to handler " + p);
-							try {
-								conn.shutdown();
-							} catch (Throwable t2) {
-								manager.getLogger().info("Connection threw " + t2 + " when trying to shutdown after " + t + " was thrown");
+						taskExecutor.submit(new Runnable() {
+							public void run() {
+								handle(c);
 							}
-							continue;
-						}
-					} finally {
-						c.done();
+						});
+					} catch (RejectedExecutionException e) {
+						drop(c);
 					}
 				}
 			} catch (Throwable t) {
@@ -0,0 +1,52 @@
+package org.tiernolan.nervous.network.queue;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors which run each task on a virtual thread.<br>
+ * <br>
+ * Virtual threads are looked up by reflection, so the library still runs on JVMs without them.  On those JVMs, 
+ * a cached thread pool is used instead.
+ */
+public class VirtualThreads {
+	
+	private final static Method newVirtualThreadPerTaskExecutor = getFactoryMethod();
+	
+	private static Method getFactoryMethod() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Checks if the JVM supports virtual threads
+	 * 
+	 * @return
+	 */
+	public static boolean isSupported() {
+		return newVirtualThreadPerTaskExecutor != null;
+	}
+	
+	/**
+	 * Creates an executor which starts a new virtual thread for each task, or a cached thread pool if virtual 
+	 * threads are not supported
+	 * 
+	 * @return the executor
+	 */
+	public static ExecutorService newPerTaskExecutor() {
+		if (newVirtualThreadPerTaskExecutor != null) {
+			try {
+				return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+			} catch (Exception e) {
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+}
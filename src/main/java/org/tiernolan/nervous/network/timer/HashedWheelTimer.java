@@ -0,0 +1,211 @@
+package org.tiernolan.nervous.network.timer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel.<br>
+ * <br>
+ * The timer does not have its own thread.  Timeouts may be scheduled and cancelled from any thread, but the
+ * expire() method must only be called by a single owner thread, which is expected to block for at most
+ * getSelectTimeout() milliseconds between calls.
+ */
+public class HashedWheelTimer {
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final long tickNanos;
+	private final long startTime;
+	private final Timeout.Bucket[] wheel;
+	private final int mask;
+
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	private long tick = 0;
+	private int wheelCount = 0;
+	// No bucket from tick up to, but not including, nextTick contains a timeout
+	private long nextTick = 0;
+
+	public HashedWheelTimer(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("Tick duration must be positive");
+		}
+		if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("Wheel size must be between 1 and 2^30");
+		}
+		int length = Integer.highestOneBit(wheelSize - 1) << 1;
+		if (length == 0) {
+			length = 1;
+		}
+		this.wheel = new Timeout.Bucket[length];
+		for (int i = 0; i < length; i++) {
+			wheel[i] = new Timeout.Bucket();
+		}
+		this.mask = length - 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.startTime = System.nanoTime();
+	}
+
+	/**
+	 * Schedules a task to run after the given delay.  This method may be called by any thread.
+	 *
+	 * @param task the task
+	 * @param delay the delay in milliseconds
+	 * @return the timeout
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+		Timeout timeout = new Timeout(this, task, deadline);
+		size.incrementAndGet();
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Gets the number of timeouts which have neither expired nor been removed after cancellation
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Gets the maximum time the owner thread may block before calling expire(), in milliseconds.  This method must 
+	 * only be called by the owner thread.<br>
+	 * <br>
+	 * The next non-empty bucket is tracked as timeouts are added and ticks pass, so the wheel is only searched 
+	 * once the previous bucket found has been reached.  Each bucket is passed over at most once per search, so 
+	 * the cost is spread over the ticks which pass before the next timeout.
+	 *
+	 * @return the timeout, 0 if there are no timeouts scheduled or -1 if expire() should be called without blocking
+	 */
+	public long getSelectTimeout() {
+		if (size.get() == 0) {
+			return 0;
+		}
+		long next = tick;
+		if (pending.isEmpty() && wheelCount > 0) {
+			next = findNextTick();
+		}
+		long wait = (next + 1) * tickNanos - (System.nanoTime() - startTime);
+		if (wait <= 0) {
+			return -1;
+		}
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999999));
+	}
+
+	/**
+	 * Runs all tasks which have expired.  This method must only be called by the owner thread.
+	 *
+	 * @return the number of tasks run
+	 */
+	public int expire() {
+		long now = System.nanoTime() - startTime;
+		removeCancelled();
+		if (wheelCount == 0) {
+			tick = Math.max(tick, now / tickNanos);
+		}
+		transferPending();
+		int expired = 0;
+		while ((tick + 1) * tickNanos <= now) {
+			Timeout.Bucket bucket = wheel[(int) (tick & mask)];
+			Timeout timeout = bucket.head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0) {
+					remove(timeout);
+					if (timeout.expire()) {
+						expired++;
+						try {
+							timeout.getTask().run();
+						} catch (Throwable t) {
+							logger.info("Timer task threw " + t);
+						}
+					}
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+			tick++;
+			removeCancelled();
+		}
+		return expired;
+	}
+
+	/**
+	 * Cancels all timeouts.  This method must only be called by the owner thread.
+	 */
+	public void clear() {
+		transferPending();
+		for (Timeout.Bucket bucket : wheel) {
+			Timeout timeout;
+			while ((timeout = bucket.head) != null) {
+				timeout.cancel();
+				remove(timeout);
+			}
+		}
+		cancelled.clear();
+	}
+
+	/**
+	 * Finds the next tick with a non-empty bucket, starting from the last tick found
+	 *
+	 * @return the tick
+	 */
+	private long findNextTick() {
+		long limit = tick + wheel.length;
+		long t = Math.max(nextTick, tick);
+		while (t < limit && wheel[(int) (t & mask)].isEmpty()) {
+			t++;
+		}
+		nextTick = t;
+		return t;
+	}
+
+	void cancelled(Timeout timeout) {
+		cancelled.add(timeout);
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				remove(timeout);
+			}
+		}
+	}
+
+	private void remove(Timeout timeout) {
+		timeout.bucket.remove(timeout);
+		wheelCount--;
+		size.decrementAndGet();
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.isCancelled()) {
+				size.decrementAndGet();
+				continue;
+			}
+			long calculated = timeout.getDeadline() / tickNanos;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			wheel[(int) (Math.max(calculated, tick) & mask)].add(timeout);
+			wheelCount++;
+			long first = tick + ((Math.max(calculated, tick) - tick) & mask);
+			if (first < nextTick) {
+				nextTick = first;
+			}
+		}
+	}
+
+}
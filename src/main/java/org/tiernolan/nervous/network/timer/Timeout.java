@@ -0,0 +1,108 @@
+package org.tiernolan.nervous.network.timer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Timeout {
+
+	private final static int INIT = 0;
+	private final static int CANCELLED = 1;
+	private final static int EXPIRED = 2;
+
+	private final HashedWheelTimer timer;
+	private final Runnable task;
+	private final long deadline;
+	private final AtomicInteger state = new AtomicInteger(INIT);
+
+	long remainingRounds;
+	Timeout next;
+	Timeout prev;
+	Bucket bucket;
+
+	Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+		this.timer = timer;
+		this.task = task;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Cancels the timeout
+	 *
+	 * @return true if the timeout was cancelled before it expired
+	 */
+	public boolean cancel() {
+		if (!state.compareAndSet(INIT, CANCELLED)) {
+			return false;
+		}
+		timer.cancelled(this);
+		return true;
+	}
+
+	/**
+	 * Returns true if the timeout was cancelled
+	 *
+	 * @return
+	 */
+	public boolean isCancelled() {
+		return state.get() == CANCELLED;
+	}
+
+	/**
+	 * Returns true if the timeout has expired
+	 *
+	 * @return
+	 */
+	public boolean isExpired() {
+		return state.get() == EXPIRED;
+	}
+
+	long getDeadline() {
+		return deadline;
+	}
+
+	Runnable getTask() {
+		return task;
+	}
+
+	boolean expire() {
+		return state.compareAndSet(INIT, EXPIRED);
+	}
+
+	static class Bucket {
+
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.next = null;
+			timeout.prev = null;
+			timeout.bucket = null;
+		}
+
+		boolean isEmpty() {
+			return head == null;
+		}
+
+	}
+
+}
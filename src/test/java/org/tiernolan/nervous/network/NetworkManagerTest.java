@@ -3,17 +3,43 @@ package org.tiernolan.nervous.network;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
 import org.junit.Test;
+import org.tiernolan.nervous.network.NetworkConfig.ExecutionMode;
+import org.tiernolan.nervous.network.NetworkConfig.HandlerMode;
+import org.tiernolan.nervous.network.NetworkConfig.ReadDispatch;
+import org.tiernolan.nervous.network.NetworkConfig.ReadFraming;
+import org.tiernolan.nervous.network.NetworkConfig.TlsMode;
+import org.tiernolan.nervous.network.api.connection.SocketProfile;
+import org.tiernolan.nervous.network.balance.SelectorAssignment;
+import org.tiernolan.nervous.network.balance.SelectorLoad;
 import org.tiernolan.nervous.network.connection.SimpleConnection;
 import org.tiernolan.nervous.network.connection.SimpleProtocol;
+import org.tiernolan.nervous.network.connection.SimpleProtocol.GenericPacket;
 
 public class NetworkManagerTest {
 	
@@ -50,6 +76,597 @@ public class NetworkManagerTest {
 		
 	}
 	
+	@Test
+	public void configTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkConfig config = new NetworkConfig();
+		config.setTimerWheel(1, 64);
+		config.setWriteCork(1024, 5);
+		config.setChunkSize(100000);
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(1, 2, protocol, ExecutionMode.SHARED, HandlerMode.POOL, config);
+		
+		assertTrue("Config not used by manager", manager.getConfig() == config);
+		
+		int maxSize = manager.getByteBufferPool().getMaxSize();
+		
+		assertTrue("Buffer pool not sized for the chunk size", maxSize >= protocol.getPacketHeaderSize() + 100000);
+		
+		boolean thrown = false;
+		try {
+			config.setChunkSize(maxSize);
+		} catch (IllegalArgumentException e) {
+			thrown = true;
+		}
+		
+		assertTrue("Chunk size larger than the buffer pool accepted", thrown);
+		
+		thrown = false;
+		try {
+			config.setStreamingBufferSize(maxSize + 1);
+		} catch (IllegalArgumentException e) {
+			thrown = true;
+		}
+		
+		assertTrue("Streaming buffer size larger than the buffer pool accepted", thrown);
+		
+		config.setChunkSize(maxSize - protocol.getPacketHeaderSize());
+		config.setStreamingBufferSize(maxSize);
+		
+		manager.listen(1234);
+		
+		Socket s = new Socket("localhost", 1234);
+		
+		DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+
+		Thread t = setTimeout(manager, 1000);
+		
+		writeIntPacket(dos, 0x77);
+		
+		checkIntPacket(dis, 0x77);
+		
+		writeIntPacket(dos, -1);
+		
+		checkEOF(dis);
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void inlineReadTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setReadDispatch(ReadDispatch.INLINE);
+		manager.getConfig().setInlineReadBudget(8, 1000000L);
+		
+		manager.listen(1234);
+		
+		Socket s = new Socket("localhost", 1234);
+		
+		DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+
+		Thread t = setTimeout(manager, 1000);
+		
+		for (int i = 0; i < 100; i++) {
+			writeIntPacket(dos, i);
+			writeLongPacket(dos, i);
+		}
+		
+		for (int i = 0; i < 100; i++) {
+			checkIntPacket(dis, i);
+			checkLongPacket(dis, i + 1);
+		}
+		
+		writeIntPacket(dos, -1);
+		
+		checkEOF(dis);
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void socketProfileTest() throws IOException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		SocketProfile defaults = new SocketProfile();
+		defaults.setTcpNoDelay(true);
+		defaults.setKeepAlive(false);
+		
+		manager.getConfig().setSocketProfile(defaults);
+		
+		SocketProfile override = new SocketProfile();
+		override.setKeepAlive(true);
+		override.setLinger(5);
+		
+		SocketProfile profile = manager.getSocketProfile(override);
+		
+		assertEquals("Default option not applied", Boolean.TRUE, profile.getTcpNoDelay());
+		assertEquals("Option not overridden", Boolean.TRUE, profile.getKeepAlive());
+		assertEquals("Override option not applied", Integer.valueOf(5), profile.getLinger());
+		assertEquals("Unset option was set", null, profile.getReceiveBufferSize());
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(0));
+		
+		SocketChannel out = SocketChannel.open(server.getLocalAddress());
+		SocketChannel in = server.accept();
+		
+		profile.apply(in);
+		
+		assertTrue("TCP_NODELAY not set", in.getOption(StandardSocketOptions.TCP_NODELAY));
+		assertTrue("SO_KEEPALIVE not set", in.getOption(StandardSocketOptions.SO_KEEPALIVE));
+		assertEquals("SO_LINGER not set", 5, (int) in.getOption(StandardSocketOptions.SO_LINGER));
+		
+		in.close();
+		out.close();
+		server.close();
+		
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void virtualHandlerTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(2, 2, protocol, ExecutionMode.SHARED, HandlerMode.VIRTUAL);
+		
+		assertEquals("Handler mode not set", HandlerMode.VIRTUAL, manager.getHandlerMode());
+		
+		manager.listen(1234);
+		
+		Socket s = new Socket("localhost", 1234);
+		
+		DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+
+		Thread t = setTimeout(manager, 1000);
+		
+		for (int i = 0; i < 100; i++) {
+			writeIntPacket(dos, i);
+			writeLongPacket(dos, i);
+		}
+		
+		for (int i = 0; i < 100; i++) {
+			checkIntPacket(dis, i);
+			checkLongPacket(dis, i + 1);
+		}
+		
+		writeIntPacket(dos, -1);
+		
+		checkEOF(dis);
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void shardedTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(4, 2, protocol, ExecutionMode.SHARDED);
+		
+		assertEquals("Execution mode not set", ExecutionMode.SHARDED, manager.getExecutionMode());
+		
+		manager.listen(1234);
+		
+		Socket[] sockets = new Socket[8];
+		
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = new Socket("localhost", 1234);
+		}
+
+		Thread t = setTimeout(manager, 1000);
+		
+		for (int i = 0; i < sockets.length; i++) {
+			DataOutputStream dos = new DataOutputStream(sockets[i].getOutputStream());
+			DataInputStream dis = new DataInputStream(sockets[i].getInputStream());
+			
+			writeIntPacket(dos, i);
+			writeLongPacket(dos, i);
+			
+			checkIntPacket(dis, i);
+			checkLongPacket(dis, i + 1);
+			
+			writeIntPacket(dos, -1);
+			
+			checkEOF(dis);
+		}
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void rebalanceTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(2, 2, protocol);
+		
+		manager.getConfig().setSelectorAssignment(new SelectorAssignment() {
+			public int select(SelectorLoad[] selectors) {
+				return 0;
+			}
+		});
+		manager.getConfig().setLoadSampleInterval(20);
+		manager.getConfig().setRebalance(50, 1.0, 0);
+		
+		manager.listen(1234);
+		
+		Socket[] sockets = new Socket[2];
+		DataOutputStream[] dos = new DataOutputStream[sockets.length];
+		DataInputStream[] dis = new DataInputStream[sockets.length];
+		
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = new Socket("localhost", 1234);
+			dos[i] = new DataOutputStream(sockets[i].getOutputStream());
+			dis[i] = new DataInputStream(sockets[i].getInputStream());
+		}
+
+		Thread t = setTimeout(manager, 5000);
+		
+		long start = System.currentTimeMillis();
+		int i = 0;
+		while (manager.getMigrations() == 0 && System.currentTimeMillis() - start < 4000) {
+			for (int j = 0; j < sockets.length; j++) {
+				writeIntPacket(dos[j], i);
+				checkIntPacket(dis[j], i);
+			}
+			i++;
+		}
+		
+		assertTrue("Skewed load was not rebalanced", manager.getMigrations() > 0);
+		
+		for (int j = 0; j < sockets.length; j++) {
+			writeLongPacket(dos[j], j);
+			checkLongPacket(dis[j], j + 1);
+			
+			writeIntPacket(dos[j], -1);
+			
+			checkEOF(dis[j]);
+		}
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void bulkReadTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setReadFraming(ReadFraming.BULK, 4096);
+		manager.getConfig().setReadBudget(3, 0);
+		
+		manager.listen(1234);
+		
+		Socket s = new Socket("localhost", 1234);
+		
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+
+		Thread t = setTimeout(manager, 1000);
+		
+		for (int i = 0; i < 100; i++) {
+			writeIntPacket(dos, i);
+			writeLongPacket(dos, i);
+		}
+		dos.flush();
+		
+		for (int i = 0; i < 100; i++) {
+			checkIntPacket(dis, i);
+			checkLongPacket(dis, i + 1);
+		}
+		
+		writeIntPacket(dos, -1);
+		dos.flush();
+		
+		checkEOF(dis);
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void corkTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setWriteCork(0, 20);
+		
+		manager.listen(1234);
+		
+		Socket s = new Socket("localhost", 1234);
+		
+		DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+
+		Thread t = setTimeout(manager, 1000);
+		
+		for (int i = 0; i < 10; i++) {
+			writeIntPacket(dos, i);
+			checkIntPacket(dis, i);
+		}
+		
+		writeIntPacket(dos, -1);
+		
+		checkEOF(dis);
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void directWriteTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setDirectWrite(true);
+		
+		manager.listen(1234);
+		
+		Socket s = new Socket("localhost", 1234);
+		
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+
+		Thread t = setTimeout(manager, 2000);
+		
+		for (int i = 0; i < 10; i++) {
+			writeIntPacket(dos, i);
+			dos.flush();
+			checkIntPacket(dis, i);
+		}
+		
+		for (int i = 0; i < 10000; i++) {
+			writeLongPacket(dos, i);
+		}
+		dos.flush();
+		
+		for (int i = 0; i < 10000; i++) {
+			checkLongPacket(dis, i + 1);
+		}
+		
+		writeIntPacket(dos, -1);
+		dos.flush();
+		
+		checkEOF(dis);
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void broadcastTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.listen(1234);
+		
+		Socket[] sockets = new Socket[3];
+		DataOutputStream[] dos = new DataOutputStream[sockets.length];
+		DataInputStream[] dis = new DataInputStream[sockets.length];
+
+		Thread t = setTimeout(manager, 1000);
+		
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = new Socket("localhost", 1234);
+			dos[i] = new DataOutputStream(sockets[i].getOutputStream());
+			dis[i] = new DataInputStream(sockets[i].getInputStream());
+			writeIntPacket(dos[i], i);
+			checkIntPacket(dis[i], i);
+		}
+		
+		GenericPacket p = protocol.new GenericPacket(0) {
+			@Override
+			public Object getData() {
+				return 77;
+			}
+		};
+		
+		assertEquals("Broadcast not written to every channel", sockets.length, manager.broadcast(p));
+		
+		for (int i = 0; i < sockets.length; i++) {
+			checkIntPacket(dis[i], 77);
+			writeIntPacket(dos[i], -1);
+			checkEOF(dis[i]);
+		}
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void tlsTest() throws IOException, InterruptedException, GeneralSecurityException {
+		
+		SSLContext context = getTlsContext();
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setTls(TlsMode.SERVER, context, 100, 60);
+		
+		manager.listen(1234);
+		
+		Thread t = setTimeout(manager, 10000);
+		
+		byte[] sessionId = null;
+		
+		for (int c = 0; c < 2; c++) {
+			SSLSocket s = (SSLSocket) context.getSocketFactory().createSocket("localhost", 1234);
+			s.setEnabledProtocols(new String[] {"TLSv1.2"});
+			
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			DataInputStream dis = new DataInputStream(s.getInputStream());
+			
+			for (int i = 0; i < 10; i++) {
+				writeIntPacket(dos, i);
+				checkIntPacket(dis, i);
+			}
+			
+			for (int i = 0; i < 10000; i++) {
+				writeLongPacket(dos, i);
+			}
+			
+			for (int i = 0; i < 10000; i++) {
+				checkLongPacket(dis, i + 1);
+			}
+			
+			if (c == 0) {
+				sessionId = s.getSession().getId();
+				s.close();
+			} else {
+				assertTrue("TLS session was not resumed", Arrays.equals(sessionId, s.getSession().getId()));
+				writeIntPacket(dos, -1);
+				checkEOF(dis);
+				s.close();
+			}
+		}
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	@Test
+	public void tlsClientTest() throws IOException, InterruptedException, GeneralSecurityException {
+		
+		SSLContext context = getTlsContext();
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setTls(TlsMode.CLIENT, context, 0, 0);
+		
+		SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+		
+		Thread t = setTimeout(manager, 10000);
+		
+		assertTrue("Channel not added", manager.addChannel(SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()))));
+		
+		Socket s = server.accept();
+		
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+		
+		for (int i = 0; i < 100; i++) {
+			writeIntPacket(dos, i);
+			checkIntPacket(dis, i);
+		}
+		
+		writeIntPacket(dos, -1);
+		checkEOF(dis);
+		
+		s.close();
+		server.close();
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
+	private SSLContext getTlsContext() throws IOException, InterruptedException, GeneralSecurityException {
+		File keystore = File.createTempFile("nervous", ".p12");
+		keystore.delete();
+		keystore.deleteOnExit();
+		
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "test", "-keyalg", "EC", "-validity", "1", 
+				"-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", keystore.getPath(), 
+				"-storepass", "password", "-keypass", "password").redirectErrorStream(true).start();
+		InputStream output = p.getInputStream();
+		while (output.read() != -1) {
+		}
+		assertEquals("Unable to generate keystore", 0, p.waitFor());
+		
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keystore);
+		try {
+			ks.load(in, "password".toCharArray());
+		} finally {
+			in.close();
+		}
+		
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, "password".toCharArray());
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+		return context;
+	}
+	
+	@Test
+	public void reusePortTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setListenBacklog(1024);
+		
+		manager.listen(new InetSocketAddress(1234), 4);
+		
+		Socket[] sockets = new Socket[8];
+		
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = new Socket("localhost", 1234);
+		}
+
+		Thread t = setTimeout(manager, 1000);
+		
+		for (int i = 0; i < sockets.length; i++) {
+			DataOutputStream dos = new DataOutputStream(sockets[i].getOutputStream());
+			DataInputStream dis = new DataInputStream(sockets[i].getInputStream());
+			
+			writeIntPacket(dos, i);
+			
+			checkIntPacket(dis, i);
+			
+			writeIntPacket(dos, -1);
+			
+			checkEOF(dis);
+		}
+		
+		t.interrupt();
+		manager.shutdown();
+		
+	}
+	
 	@Test
 	public void randomTest() throws IOException, InterruptedException {
 		
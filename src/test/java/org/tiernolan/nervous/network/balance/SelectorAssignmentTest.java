@@ -0,0 +1,93 @@
+package org.tiernolan.nervous.network.balance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.tiernolan.nervous.network.balance.LeastLoadAssignment.LoadMetric;
+
+public class SelectorAssignmentTest {
+
+	@Test
+	public void roundRobinTest() {
+
+		SelectorLoad[] selectors = getSelectors(new int[] {5, 0, 3}, new double[] {0, 0, 0}, new double[] {0, 0, 0});
+
+		SelectorAssignment assignment = new RoundRobinAssignment();
+
+		for (int i = 0; i < 9; i++) {
+			assertEquals("Round robin selection out of order", i % 3, assignment.select(selectors));
+		}
+	}
+
+	@Test
+	public void leastConnectionsTest() {
+
+		SelectorLoad[] selectors = getSelectors(new int[] {5, 1, 3}, new double[] {0, 100, 0}, new double[] {0, 100, 0});
+
+		SelectorAssignment assignment = new LeastConnectionsAssignment();
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals("Least connections did not select the emptiest selector", 1, assignment.select(selectors));
+		}
+
+		selectors = getSelectors(new int[] {2, 2, 2}, new double[] {0, 0, 0}, new double[] {0, 0, 0});
+
+		int[] counts = new int[3];
+		for (int i = 0; i < 30; i++) {
+			counts[assignment.select(selectors)]++;
+		}
+		for (int i = 0; i < counts.length; i++) {
+			assertTrue("Ties were not spread across selectors", counts[i] > 0);
+		}
+	}
+
+	@Test
+	public void leastLoadTest() {
+
+		SelectorLoad[] selectors = getSelectors(new int[] {1, 5, 1}, new double[] {50, 10, 20}, new double[] {100, 500, 10});
+
+		assertEquals("Least event load not selected", 1, new LeastLoadAssignment(LoadMetric.EVENTS).select(selectors));
+
+		assertEquals("Least byte load not selected", 2, new LeastLoadAssignment(LoadMetric.BYTES).select(selectors));
+
+		selectors = getSelectors(new int[] {3, 1, 2}, new double[] {0, 0, 0}, new double[] {0, 0, 0});
+
+		assertEquals("Equal loads were not split by connection count", 1, new LeastLoadAssignment().select(selectors));
+	}
+
+	private SelectorLoad[] getSelectors(int[] connections, double[] events, double[] bytes) {
+		SelectorLoad[] selectors = new SelectorLoad[connections.length];
+		for (int i = 0; i < selectors.length; i++) {
+			selectors[i] = new SimpleSelectorLoad(connections[i], events[i], bytes[i]);
+		}
+		return selectors;
+	}
+
+	private static class SimpleSelectorLoad implements SelectorLoad {
+
+		private final int connections;
+		private final double events;
+		private final double bytes;
+
+		public SimpleSelectorLoad(int connections, double events, double bytes) {
+			this.connections = connections;
+			this.events = events;
+			this.bytes = bytes;
+		}
+
+		public int getConnectionCount() {
+			return connections;
+		}
+
+		public double getEventRate() {
+			return events;
+		}
+
+		public double getByteRate() {
+			return bytes;
+		}
+
+	}
+
+}
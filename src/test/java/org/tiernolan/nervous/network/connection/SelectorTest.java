@@ -5,14 +5,17 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
+import org.tiernolan.nervous.network.NetworkConfig.OutboundOverflowPolicy;
 import org.tiernolan.nervous.network.NetworkManagerImpl;
 import org.tiernolan.nervous.network.api.NetworkManager;
 import org.tiernolan.nervous.network.api.protocol.Packet;
@@ -131,9 +134,11 @@ public class SelectorTest {
 		server.bind(new InetSocketAddress(port));
 		
 		SocketChannel out = SocketChannel.open();
+		out.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
 		out.connect(new InetSocketAddress(port));
 		
 		SocketChannel in = server.accept();
+		in.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
 		
 		ChannelHandler<SimpleConnection> handler = selectorHandler.addChannel(in, queue);
 
@@ -165,6 +170,278 @@ public class SelectorTest {
 		server.close();
 	}
 	
+	@Test
+	public void idleTest() throws IOException, InterruptedException {
+		SimpleProtocol protocol = new SimpleProtocol();
+
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setIdleTimeouts(100, 0, 0);
+		manager.getConfig().setIdleCheckInterval(20);
+
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new StripedQueueImpl<PacketWrapper<SimpleConnection>>();
+		
+		SelectorHandler<SimpleConnection> selectorHandler = new SelectorHandler<SimpleConnection>(manager);
+
+		selectorHandler.start();
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		
+		server.bind(new InetSocketAddress(port));
+		
+		SocketChannel out = SocketChannel.open();
+		out.connect(new InetSocketAddress(port));
+		
+		SocketChannel in = server.accept();
+		
+		long start = System.currentTimeMillis();
+		
+		selectorHandler.addChannel(in, queue);
+		
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(40);
+			writeIntPacket(out, i);
+		}
+		
+		assertTrue("Active channel was closed", in.isOpen());
+		
+		while (in.isOpen() && System.currentTimeMillis() - start < 1000) {
+			Thread.sleep(10);
+		}
+		
+		assertTrue("Idle channel was not closed", !in.isOpen());
+		
+		assertEquals("Idle eviction not counted", 1, selectorHandler.getIdleEvictions());
+		
+		selectorHandler.interrupt();
+		
+		selectorHandler.join(100);
+		
+		assertTrue("Selector handler thread alive", !selectorHandler.isAlive());
+		
+		out.close();
+		
+		server.close();
+	}
+	
+	@Test
+	public void migrateTest() throws IOException, InterruptedException {
+		SimpleProtocol protocol = new SimpleProtocol();
+
+		NetworkManager<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new StripedQueueImpl<PacketWrapper<SimpleConnection>>();
+		
+		final SelectorHandler<SimpleConnection> source = new SelectorHandler<SimpleConnection>(manager);
+		final SelectorHandler<SimpleConnection> target = new SelectorHandler<SimpleConnection>(manager);
+
+		source.start();
+		target.start();
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		
+		server.bind(new InetSocketAddress(port));
+		
+		SocketChannel out = SocketChannel.open();
+		out.connect(new InetSocketAddress(port));
+		
+		SocketChannel in = server.accept();
+		
+		final ChannelHandler<SimpleConnection> handler = source.addChannel(in, queue);
+		
+		for (int i = 0; i < 100; i++) {
+			writeIntPacket(out, i);
+		}
+		
+		final AtomicBoolean migrated = new AtomicBoolean(false);
+		long start = System.currentTimeMillis();
+		while (!migrated.get() && System.currentTimeMillis() - start < 1000) {
+			source.schedule(new Runnable() {
+				public void run() {
+					if (!migrated.get()) {
+						migrated.set(source.migrate(handler, target));
+					}
+				}
+			}, 0);
+			Thread.sleep(10);
+		}
+		
+		assertTrue("Channel was not migrated", migrated.get());
+		
+		for (int i = 100; i < 200; i++) {
+			writeIntPacket(out, i);
+		}
+		
+		Serdes<SimpleConnection> serdes = handler.getSerdes();
+		
+		for (int i = 0; i < 10; i++) {
+			serdes.writePacket(getPacket(i, protocol));
+		}
+		
+		for (int i = 0; i < 200; i++) {
+			Completable<PacketWrapper<SimpleConnection>> c = queue.take();
+			Packet<SimpleConnection> p = (Packet<SimpleConnection>) c.getStriped().getPacket();
+			assertEquals("Packet decode failure", ((GenericPacket) p).getData(), i);
+			c.done();
+		}
+		
+		for (int i = 0; i < 10; i++) {
+			checkIntPacket(out, i);
+		}
+		
+		assertEquals("Migration not counted", 1, source.getMigrations());
+		assertEquals("Channel still counted by source selector", 0, source.getConnectionCount());
+		assertEquals("Channel not counted by target selector", 1, target.getConnectionCount());
+		
+		source.interrupt();
+		target.interrupt();
+		
+		source.join(100);
+		target.join(100);
+		
+		assertTrue("Selector handler thread alive", !source.isAlive() && !target.isAlive());
+		
+		assertTrue("Input channel did not automatically close", !in.isOpen());
+		
+		out.close();
+		
+		server.close();
+	}
+	
+	@Test
+	public void inboundBackpressureTest() throws IOException, InterruptedException {
+		SimpleProtocol protocol = new SimpleProtocol();
+
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setInboundWatermarks(2, 4);
+
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new StripedQueueImpl<PacketWrapper<SimpleConnection>>();
+		
+		SelectorHandler<SimpleConnection> selectorHandler = new SelectorHandler<SimpleConnection>(manager);
+
+		selectorHandler.start();
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		
+		server.bind(new InetSocketAddress(port));
+		
+		SocketChannel out = SocketChannel.open();
+		out.connect(new InetSocketAddress(port));
+		
+		SocketChannel in = server.accept();
+		
+		ChannelHandler<SimpleConnection> handler = selectorHandler.addChannel(in, queue);
+		
+		for (int i = 0; i < 20; i++) {
+			writeIntPacket(out, i);
+		}
+		
+		long start = System.currentTimeMillis();
+		while (!handler.isInboundSuspended() && System.currentTimeMillis() - start < 1000) {
+			Thread.sleep(10);
+		}
+		
+		assertTrue("Reading was not suspended", handler.isInboundSuspended());
+		
+		assertEquals("Queued packets exceeded the high watermark", 4, manager.getInboundPackets());
+		
+		for (int i = 0; i < 20; i++) {
+			Completable<PacketWrapper<SimpleConnection>> c = queue.take();
+			Packet<SimpleConnection> p = (Packet<SimpleConnection>) c.getStriped().getPacket();
+			assertEquals("Packet decode failure", ((GenericPacket) p).getData(), i);
+			c.getStriped().handled();
+			c.done();
+		}
+		
+		assertTrue("Reading was not resumed", !handler.isInboundSuspended());
+		
+		assertEquals("Handled packets still counted", 0, manager.getInboundPackets());
+		
+		selectorHandler.interrupt();
+		
+		selectorHandler.join(100);
+		
+		assertTrue("Selector handler thread alive", !selectorHandler.isAlive());
+		
+		out.close();
+		
+		server.close();
+	}
+	
+	@Test
+	public void outboundBackpressureTest() throws IOException, InterruptedException {
+		SimpleProtocol protocol = new SimpleProtocol();
+
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setOutboundWatermarks(64, 256);
+		manager.getConfig().setIdleCheckInterval(20);
+
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new StripedQueueImpl<PacketWrapper<SimpleConnection>>();
+		
+		SelectorHandler<SimpleConnection> selectorHandler = new SelectorHandler<SimpleConnection>(manager);
+
+		selectorHandler.start();
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		
+		server.bind(new InetSocketAddress(port));
+		
+		SocketChannel out = SocketChannel.open();
+		out.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+		out.connect(new InetSocketAddress(port));
+		
+		SocketChannel in = server.accept();
+		in.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+		
+		ChannelHandler<SimpleConnection> handler = selectorHandler.addChannel(in, queue);
+
+		Serdes<SimpleConnection> serdes = handler.getSerdes();
+		
+		for (int i = 0; i < 16384; i++) {
+			serdes.writePacket(getPacket(i, protocol));
+		}
+		
+		assertTrue("Network writable above the high watermark", !serdes.isWritable());
+		
+		for (int i = 0; i < 16384; i++) {
+			checkIntPacket(out, i);
+		}
+		
+		long start = System.currentTimeMillis();
+		while (!serdes.isWritable() && System.currentTimeMillis() - start < 1000) {
+			Thread.sleep(10);
+		}
+		
+		assertTrue("Network not writable after the buffer drained", serdes.isWritable());
+		
+		manager.getConfig().setOutboundOverflowPolicy(OutboundOverflowPolicy.CLOSE, 50);
+		
+		for (int i = 0; i < 16384; i++) {
+			serdes.writePacket(getPacket(i, protocol));
+		}
+		
+		start = System.currentTimeMillis();
+		while (in.isOpen() && System.currentTimeMillis() - start < 1000) {
+			Thread.sleep(10);
+		}
+		
+		assertTrue("Stalled channel was not closed", !in.isOpen());
+		
+		assertEquals("Stalled channel close not counted", 1, selectorHandler.getOutboundStallCloses());
+		
+		selectorHandler.interrupt();
+		
+		selectorHandler.join(100);
+		
+		assertTrue("Selector handler thread alive", !selectorHandler.isAlive());
+		
+		out.close();
+		
+		server.close();
+	}
+	
 	@Test
 	public void randomDecodeTest() throws IOException, InterruptedException {
 		SimpleProtocol protocol = new SimpleProtocol();
@@ -269,6 +546,8 @@ public class SelectorTest {
 			}
 		}
 		
+		assertTrue("More wakeups issued than requested", selectorHandler.getWakeupsIssued() <= selectorHandler.getWakeupsRequested());
+		
 		assertTrue("Unexpected packet decoded", queue.poll() == null);
 		
 		selectorHandler.interrupt();
@@ -284,6 +563,53 @@ public class SelectorTest {
 		server.close();
 	}
 	
+	@Test
+	public void directWriteWakeupTest() throws IOException, InterruptedException {
+		SimpleProtocol protocol = new SimpleProtocol();
+
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setDirectWrite(true);
+
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new StripedQueueImpl<PacketWrapper<SimpleConnection>>();
+		
+		SelectorHandler<SimpleConnection> selectorHandler = new SelectorHandler<SimpleConnection>(manager);
+
+		selectorHandler.start();
+		
+		ServerSocketChannel server = ServerSocketChannel.open();
+		
+		server.bind(new InetSocketAddress(port));
+		
+		SocketChannel out = SocketChannel.open();
+		out.connect(new InetSocketAddress(port));
+		
+		SocketChannel in = server.accept();
+		
+		ChannelHandler<SimpleConnection> handler = selectorHandler.addChannel(in, queue);
+		
+		Serdes<SimpleConnection> serdes = handler.getSerdes();
+		
+		long wakeups = selectorHandler.getWakeupsRequested();
+		
+		for (int i = 0; i < 100; i++) {
+			serdes.writePacket(getPacket(i, protocol));
+			checkIntPacket(out, i);
+		}
+		
+		assertEquals("Direct writes which drained the queue requested wakeups", wakeups, selectorHandler.getWakeupsRequested());
+		
+		selectorHandler.interrupt();
+		
+		selectorHandler.join(100);
+		
+		assertTrue("Selector handler thread alive", !selectorHandler.isAlive());
+		
+		out.close();
+		
+		server.close();
+	}
+	
 	private void writeIntPacket(SocketChannel channel, int i) throws IOException {
 		channelWrite(channel, 0xAA, 0x55, 0x00, 0x00, i >> 24, i >> 16, i >> 8, i);
 	}
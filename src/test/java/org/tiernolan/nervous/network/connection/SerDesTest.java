@@ -4,14 +4,33 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Test;
+import org.tiernolan.nervous.network.NetworkConfig.ReadFraming;
 import org.tiernolan.nervous.network.NetworkManagerImpl;
 import org.tiernolan.nervous.network.api.NetworkManager;
+import org.tiernolan.nervous.network.api.protocol.ChunkedDecoder;
+import org.tiernolan.nervous.network.api.protocol.CompressionProvider;
+import org.tiernolan.nervous.network.api.protocol.Decoder;
+import org.tiernolan.nervous.network.api.protocol.Encoder;
+import org.tiernolan.nervous.network.api.protocol.Packet;
 import org.tiernolan.nervous.network.api.protocol.Protocol;
+import org.tiernolan.nervous.network.api.protocol.RetainingDecoder;
+import org.tiernolan.nervous.network.api.protocol.StreamingEncoder;
+import org.tiernolan.nervous.network.bufferpool.BufferChain;
+import org.tiernolan.nervous.network.bufferpool.SharedBuffer;
 import org.tiernolan.nervous.network.connection.SimpleProtocol.GenericPacket;
 import org.tiernolan.nervous.network.queue.Completable;
 import org.tiernolan.nervous.network.queue.PacketWrapper;
@@ -177,6 +196,676 @@ public class SerDesTest  {
 		
 	}
 	
+	@Test
+	public void readBudgetTest() throws IOException {
+		
+		Protocol<SimpleConnection> protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setReadBudget(2, 0);
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		SimpleFIFOChannel channel = new SimpleFIFOChannel();
+		
+		for (int i = 0; i < 5; i++) {
+			writeIntPacket(channel, i);
+		}
+		
+		assertEquals("Read did not stop at the packet budget", 16, serdes.read(channel));
+		assertEquals("Budget hit not counted", 1, serdes.getReadBudgetHits());
+		
+		assertEquals("Read did not stop at the packet budget", 16, serdes.read(channel));
+		assertEquals("Read did not drain the channel", 8, serdes.read(channel));
+		assertEquals("Budget hit counted when the channel was drained", 2, serdes.getReadBudgetHits());
+		
+		for (int i = 0; i < 5; i++) {
+			PacketWrapper<SimpleConnection> w = queue.poll().getStriped();
+			assertEquals("Packet decode failure", ((GenericPacket) w.getPacket()).getData(), i);
+		}
+		
+		assertNull("Unexpected packet decoded", queue.poll());
+		
+	}
+	
+	@Test
+	public void readLimitTest() throws IOException {
+		
+		Protocol<SimpleConnection> protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		SimpleFIFOChannel channel = new SimpleFIFOChannel();
+		
+		for (int i = 0; i < 5; i++) {
+			writeIntPacket(channel, i);
+		}
+		
+		assertEquals("Read did not stop at the byte limit", 12, serdes.read(channel, 12));
+		assertEquals("Byte limit counted as a read budget hit", 0, serdes.getReadBudgetHits());
+		assertEquals("Read did not drain the channel", 28, serdes.read(channel));
+		
+		for (int i = 0; i < 5; i++) {
+			PacketWrapper<SimpleConnection> w = queue.poll().getStriped();
+			assertEquals("Packet decode failure", ((GenericPacket) w.getPacket()).getData(), i);
+		}
+		
+		assertNull("Unexpected packet decoded", queue.poll());
+		
+	}
+	
+	@Test
+	public void bulkReadTest() throws IOException {
+		
+		Protocol<SimpleConnection> protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setReadFraming(ReadFraming.BULK, 256);
+		manager.getConfig().setReadBudget(2, 0);
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		SimpleFIFOChannel channel = new SimpleFIFOChannel();
+		
+		for (int i = 0; i < 5; i++) {
+			writeIntPacket(channel, i);
+			channel.write(0x12, 0x34);
+		}
+		writeIntPacket(channel, 5);
+		channel.write(0xAA, 0x55, 0x00);
+		
+		assertEquals("Bulk read did not read all available data", 61, serdes.read(channel));
+		assertTrue("Complete frames not reported as buffered", serdes.hasBufferedFrame());
+		
+		assertEquals("Bulk read read data from an empty channel", 0, serdes.read(channel));
+		assertEquals("Bulk read read data from an empty channel", 0, serdes.read(channel));
+		assertTrue("Partial frame reported as buffered", !serdes.hasBufferedFrame());
+		
+		assertEquals("Budget hits not counted", 3, serdes.getReadBudgetHits());
+		
+		channel.write(0x00, 0x00, 0x00, 0x00, 0x06);
+		
+		assertEquals("Partial frame not completed", 5, serdes.read(channel));
+		
+		for (int i = 0; i < 7; i++) {
+			PacketWrapper<SimpleConnection> w = queue.poll().getStriped();
+			assertEquals("Packet decode failure", ((GenericPacket) w.getPacket()).getData(), i);
+		}
+		
+		assertNull("Unexpected packet decoded", queue.poll());
+		
+	}
+	
+	@Test
+	public void bulkReadReuseTest() throws IOException {
+		
+		Protocol<SimpleConnection> protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setReadFraming(ReadFraming.BULK, manager.getConfig().getBulkReadBufferSize());
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		
+		SimpleFIFOChannel channel = new SimpleFIFOChannel() {
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				if (buffers.isEmpty() || buffers.get(buffers.size() - 1) != dst) {
+					buffers.add(dst);
+				}
+				return super.read(dst);
+			}
+		};
+		
+		for (int i = 0; i < 2; i++) {
+			writeIntPacket(channel, i);
+			
+			assertEquals("Bulk read did not read all available data", 8, serdes.read(channel));
+			
+			PacketWrapper<SimpleConnection> w = queue.poll().getStriped();
+			assertEquals("Packet decode failure", ((GenericPacket) w.getPacket()).getData(), i);
+		}
+		
+		assertEquals("Receive buffer not reused after being drained", 1, buffers.size());
+		assertTrue("Receive buffer not taken from the buffer pool", buffers.get(0).isDirect());
+		assertTrue("Receive buffer smaller than the bulk read size", buffers.get(0).capacity() >= manager.getConfig().getBulkReadBufferSize());
+		
+	}
+	
+	@Test
+	public void gatherTest() throws IOException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setWriteGather(4, 0);
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		GatheringFIFOChannel channel = new GatheringFIFOChannel();
+		
+		for (int i = 0; i < 10; i++) {
+			serdes.writePacket(getPacket(i, protocol));
+		}
+		
+		channel.allowance = 20;
+		
+		assertEquals("Partial gathering write incorrect", 20, serdes.write(channel));
+		assertEquals("Partial gathering write incorrect", 2, channel.writes);
+		assertTrue("Network not in write request mode", network.getWriteRequest());
+		
+		channel.allowance = Integer.MAX_VALUE;
+		channel.writes = 0;
+		
+		assertEquals("Gathering write incorrect", 60, serdes.write(channel));
+		assertEquals("Packets not gathered into batches", 3, channel.writes);
+		assertTrue("Network in write request mode", !network.getWriteRequest());
+		
+		for (int i = 0; i < 10; i++) {
+			checkIntPacket(channel, i);
+		}
+		assertNull("Unexpected data written", channel.read());
+		
+		manager.getConfig().setWriteGather(16, 20);
+		
+		for (int i = 0; i < 10; i++) {
+			serdes.writePacket(getPacket(i, protocol));
+		}
+		
+		channel.writes = 0;
+		
+		assertEquals("Gathering write incorrect", 80, serdes.write(channel));
+		assertEquals("Gathering byte limit not applied", 4, channel.writes);
+		
+		for (int i = 0; i < 10; i++) {
+			checkIntPacket(channel, i);
+		}
+		
+		serdes.shutdown();
+		serdes.writePacket(getPacket(1, protocol));
+		
+		assertTrue("Shutdown caused bytes to be written", serdes.write(channel) == 0);
+		assertNull("Network processed packet after shutdown", channel.read());
+		
+	}
+	
+	@Test
+	public void corkTest() throws IOException, InterruptedException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setWriteCork(20, 50);
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		SimpleFIFOChannel channel = new SimpleFIFOChannel();
+		
+		serdes.writePacket(getPacket(1, protocol));
+		
+		assertTrue("Corked packet caused a write request", !network.getWriteRequest());
+		assertEquals("Flush not scheduled", 50, network.getFlushDelay());
+		
+		serdes.writePacket(getPacket(2, protocol));
+		
+		assertTrue("Corked packet caused a write request", !network.getWriteRequest());
+		
+		serdes.writePacket(getPacket(3, protocol));
+		
+		assertTrue("Byte threshold did not cause a write request", network.getWriteRequest());
+		assertTrue("Byte threshold did not cancel the cork timeout", network.getFlushTimeout().isCancelled());
+		assertEquals("Timer flush followed a byte threshold flush", 0, network.expireFlushes(60));
+		
+		serdes.write(channel);
+		
+		for (int i = 1; i <= 3; i++) {
+			checkIntPacket(channel, i);
+		}
+		
+		serdes.writePacket(getPacket(4, protocol));
+		
+		assertTrue("Corked packet caused a write request", !network.getWriteRequest());
+		
+		serdes.flush();
+		
+		assertTrue("Flush did not cause a write request", network.getWriteRequest());
+		
+		serdes.write(channel);
+		
+		checkIntPacket(channel, 4);
+		
+		serdes.setWriteCork(0, 0);
+		
+		serdes.writePacket(getPacket(5, protocol));
+		
+		assertTrue("Uncorked packet did not cause a write request", network.getWriteRequest());
+		
+	}
+	
+	@Test
+	public void fileTest() throws IOException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		File f = File.createTempFile("region", null);
+		f.deleteOnExit();
+		
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		
+		try {
+			for (int i = 0; i < 1000; i++) {
+				raf.write(i);
+			}
+			
+			FileChannel file = raf.getChannel();
+			
+			for (int packets = 1; packets <= 4; packets += 3) {
+				
+				manager.getConfig().setWriteGather(packets, 0);
+			
+				GatheringFIFOChannel channel = new GatheringFIFOChannel();
+				
+				serdes.writePacket(getPacket(1, protocol));
+				serdes.writeFile(file, 100, 800);
+				serdes.writePacket(getPacket(2, protocol));
+				
+				channel.allowance = 500;
+				
+				assertEquals("Partial file transfer incorrect", 500, serdes.write(channel));
+				assertTrue("Network not in write request mode", network.getWriteRequest());
+				
+				channel.allowance = Integer.MAX_VALUE;
+				
+				assertEquals("File transfer incorrect", 316, serdes.write(channel));
+				assertTrue("Network in write request mode", !network.getWriteRequest());
+				
+				checkIntPacket(channel, 1);
+				for (int i = 100; i < 900; i++) {
+					assertEquals("File region data incorrect", (byte) i, (byte)(int) channel.read());
+				}
+				checkIntPacket(channel, 2);
+				
+				assertNull("Unexpected data written", channel.read());
+			}
+		} finally {
+			raf.close();
+		}
+		
+	}
+	
+	@Test
+	public void sharedTest() throws IOException {
+		
+		SimpleProtocol protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		Serdes<SimpleConnection> single = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		Serdes<SimpleConnection> gathering = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		Serdes<SimpleConnection> closed = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		Reference<ByteBuffer> ref = manager.getByteBufferPool().get(8);
+		ByteBuffer buf = ref.get();
+		buf.put(new byte[] {(byte) 0xAA, 0x55, 0x00, 0x00, 0x00, 0x00, 0x00, 0x07});
+		buf.flip();
+		
+		SharedBuffer shared = new SharedBuffer(manager.getByteBufferPool(), ref);
+		
+		single.writeShared(shared);
+		gathering.writeShared(shared);
+		gathering.writePacket(getPacket(8, protocol));
+		closed.writeShared(shared);
+		
+		assertTrue("Creator release returned the buffer", !shared.release());
+		assertEquals("Shared buffer not retained by each network", 3, shared.refCount());
+		
+		closed.closed();
+		closed.writeShared(shared);
+		
+		assertEquals("Closed network did not release the shared buffer", 2, shared.refCount());
+		
+		SimpleFIFOChannel channel = new SimpleFIFOChannel();
+		
+		single.write(channel);
+		checkIntPacket(channel, 7);
+		
+		assertEquals("Shared buffer not released after write", 1, shared.refCount());
+		
+		GatheringFIFOChannel gatheringChannel = new GatheringFIFOChannel();
+		gatheringChannel.allowance = 4;
+		
+		gathering.write(gatheringChannel);
+		
+		assertEquals("Shared buffer released before it was written", 1, shared.refCount());
+		
+		gatheringChannel.allowance = Integer.MAX_VALUE;
+		
+		gathering.write(gatheringChannel);
+		checkIntPacket(gatheringChannel, 7);
+		checkIntPacket(gatheringChannel, 8);
+		
+		assertEquals("Shared buffer not released after write", 0, shared.refCount());
+		
+	}
+	
+	@Test
+	public void closePartialSharedTest() throws IOException {
+		
+		Protocol<SimpleConnection> protocol = new SimpleProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		Serdes<SimpleConnection> gathering = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		Serdes<SimpleConnection> single = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		Reference<ByteBuffer> ref = manager.getByteBufferPool().get(8);
+		ByteBuffer buf = ref.get();
+		buf.put(new byte[] {(byte) 0xAA, 0x55, 0x00, 0x00, 0x00, 0x00, 0x00, 0x07});
+		buf.flip();
+		
+		SharedBuffer shared = new SharedBuffer(manager.getByteBufferPool(), ref);
+		
+		gathering.writeShared(shared);
+		single.writeShared(shared);
+		
+		assertTrue("Creator release returned the buffer", !shared.release());
+		assertEquals("Shared buffer not retained by each network", 2, shared.refCount());
+		
+		GatheringFIFOChannel gatheringChannel = new GatheringFIFOChannel();
+		gatheringChannel.allowance = 4;
+		
+		gathering.write(gatheringChannel);
+		gathering.closed();
+		
+		assertEquals("Closed network did not release a partially written gather buffer", 1, shared.refCount());
+		
+		manager.getConfig().setWriteGather(1, 0);
+		
+		GatheringFIFOChannel singleChannel = new GatheringFIFOChannel();
+		singleChannel.allowance = 4;
+		
+		single.write(singleChannel);
+		single.closed();
+		
+		assertEquals("Closed network did not release a partially written buffer", 0, shared.refCount());
+		
+	}
+	
+	@Test
+	public void retainTest() throws IOException {
+		
+		for (ReadFraming framing : ReadFraming.values()) {
+			
+			RetainingProtocol protocol = new RetainingProtocol();
+			
+			NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+			
+			manager.getConfig().setReadFraming(framing, 64);
+			
+			SimpleNetwork network = new SimpleNetwork();
+			
+			StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+			
+			Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+			
+			SimpleFIFOChannel channel = new SimpleFIFOChannel();
+			
+			for (int i = 0; i < 10; i++) {
+				writeIntPacket(channel, i);
+			}
+			channel.write(0xAA, 0x55, 0x00);
+			
+			serdes.read(channel);
+			
+			channel.write(0x00, 0x00, 0x00, 0x00, 0x0A);
+			for (int i = 11; i < 20; i++) {
+				writeIntPacket(channel, i);
+			}
+			
+			serdes.read(channel);
+			
+			assertEquals("Bodies not retained", 20, protocol.retained.size());
+			
+			for (int i = 0; i < 20; i++) {
+				PacketWrapper<SimpleConnection> w = queue.poll().getStriped();
+				assertEquals("Retained body overwritten", i, ((GenericPacket) w.getPacket()).getData());
+			}
+			
+			for (SharedBuffer body : protocol.retained) {
+				body.release();
+			}
+			for (SharedBuffer body : protocol.retained) {
+				assertEquals("Retained body not released", 0, body.refCount());
+			}
+		}
+		
+	}
+	
+	@Test
+	public void streamingTest() throws IOException {
+		
+		StreamingProtocol protocol = new StreamingProtocol();
+		
+		NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+		
+		manager.getConfig().setStreamingBufferSize(64);
+		
+		SimpleNetwork network = new SimpleNetwork();
+		
+		StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+		
+		Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+		
+		GatheringFIFOChannel gathering = new GatheringFIFOChannel();
+		
+		serdes.writePacket(getPacket(200, protocol));
+		serdes.writePacket(getPacket(3, protocol));
+		
+		gathering.allowance = 100;
+		
+		assertEquals("Partial chain write incorrect", 100, serdes.write(gathering));
+		assertTrue("Network not in write request mode", network.getWriteRequest());
+		
+		gathering.allowance = Integer.MAX_VALUE;
+		
+		assertEquals("Chain write incorrect", 111, serdes.write(gathering));
+		
+		checkStreamedPacket(gathering, 200);
+		checkStreamedPacket(gathering, 3);
+		assertNull("Unexpected data written", gathering.read());
+		
+		SimpleFIFOChannel channel = new SimpleFIFOChannel();
+		
+		serdes.writePacket(getPacket(150, protocol));
+		
+		assertEquals("Chain write incorrect", 154, serdes.write(channel));
+		
+		checkStreamedPacket(channel, 150);
+		assertNull("Unexpected data written", channel.read());
+		
+	}
+	
+	private void checkStreamedPacket(SimpleFIFOChannel channel, int size) {
+		assertEquals("Packet header encode error", (byte) 0xAA, (byte)(int) channel.read());
+		assertEquals("Packet header encode error", (byte) 0x55, (byte)(int) channel.read());
+		assertEquals("Packet length not patched", (byte) (size >> 8), (byte)(int) channel.read());
+		assertEquals("Packet length not patched", (byte) size, (byte)(int) channel.read());
+		for (int i = 0; i < size; i++) {
+			assertEquals("Packet body encode error", (byte) i, (byte)(int) channel.read());
+		}
+	}
+	
+	@Test
+	public void chunkTest() throws IOException {
+		
+		for (ReadFraming framing : ReadFraming.values()) {
+			
+			ChunkedProtocol protocol = new ChunkedProtocol();
+			
+			NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+			
+			manager.getConfig().setReadFraming(framing, 1024);
+			manager.getConfig().setChunkSize(1000);
+			
+			SimpleNetwork network = new SimpleNetwork();
+			
+			StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+			
+			Serdes<SimpleConnection> serdes = new SerdesImpl<SimpleConnection>(manager, network, queue);
+			
+			SimpleFIFOChannel channel = new SimpleFIFOChannel();
+			
+			channel.write(0xAA, 0x55, 0x00, 0x03);
+			for (int i = 0; i < ChunkedProtocol.BODY_SIZE; i++) {
+				channel.write(i);
+			}
+			writeIntPacket(channel, 7);
+			
+			while (serdes.read(channel) > 0) {
+			}
+			
+			for (int i = 0; i < 5; i++) {
+				PacketWrapper<SimpleConnection> w = queue.poll().getStriped();
+				Chunk chunk = (Chunk) ((GenericPacket) w.getPacket()).getData();
+				assertEquals("Chunk out of order", i * 1000, chunk.offset);
+				assertEquals("Chunk size incorrect", 1000, chunk.data.length);
+				assertEquals("Last chunk not marked", i == 4, chunk.last);
+				for (int j = 0; j < chunk.data.length; j++) {
+					assertEquals("Chunk data incorrect", (byte) (chunk.offset + j), chunk.data[j]);
+				}
+			}
+			
+			PacketWrapper<SimpleConnection> w = queue.poll().getStriped();
+			assertEquals("Packet after chunked body not decoded", 7, ((GenericPacket) w.getPacket()).getData());
+			
+			assertNull("Unexpected packet decoded", queue.poll());
+		}
+		
+	}
+	
+	@Test
+	public void compressTest() throws IOException {
+		
+		byte[] text = new byte[1000];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = CompressingProtocol.DICTIONARY[i % 37];
+		}
+		byte[] random = new byte[200];
+		new Random(1).nextBytes(random);
+		byte[] small = new byte[] {1, 2, 3};
+		
+		for (ReadFraming framing : ReadFraming.values()) {
+			
+			CompressingProtocol protocol = new CompressingProtocol();
+			
+			NetworkManagerImpl<SimpleConnection> manager = new NetworkManagerImpl<SimpleConnection>(protocol);
+			
+			manager.getConfig().setReadFraming(framing, 4096);
+			
+			SimpleNetwork network = new SimpleNetwork();
+			
+			StripedQueue<PacketWrapper<SimpleConnection>> queue = new SimpleStripedQueue();
+			
+			Serdes<SimpleConnection> serdesEncoder = new SerdesImpl<SimpleConnection>(manager, network, null);
+			
+			Serdes<SimpleConnection> serdesDecoder = new SerdesImpl<SimpleConnection>(manager, null, queue);
+			
+			GatheringFIFOChannel channel = new GatheringFIFOChannel();
+			channel.allowance = Integer.MAX_VALUE;
+			
+			serdesEncoder.writePacket(getPacket(small, protocol));
+			assertEquals("Small packet was not sent uncompressed", 4 + small.length, serdesEncoder.write(channel));
+			
+			serdesEncoder.writePacket(getPacket(random, protocol));
+			assertEquals("Incompressible packet was not sent uncompressed", 4 + random.length, serdesEncoder.write(channel));
+			
+			serdesEncoder.writePacket(getPacket(text, protocol));
+			int written = serdesEncoder.write(channel);
+			assertTrue("Packet was not compressed", written < 100);
+			
+			while (serdesDecoder.read(channel) > 0) {
+			}
+			
+			for (byte[] expected : new byte[][] {small, random, text}) {
+				GenericPacket p = (GenericPacket) queue.poll().getStriped().getPacket();
+				assertTrue("Decoded body does not match", Arrays.equals(expected, (byte[]) p.getData()));
+			}
+			assertNull("Unexpected packet decoded", queue.poll());
+			assertEquals("Header not restored before decoding", 0, protocol.compressedHeaders);
+			
+			assertEquals("Compression input not recorded", random.length + text.length, manager.getCompressionBytesIn());
+			assertEquals("Compression output not recorded", random.length + written - 4, manager.getCompressionBytesOut());
+			assertTrue("Compression ratio incorrect", manager.getCompressionRatio() < 0.5);
+			
+			channel.write(0xAA, 0x55, 0x80, 0x06, 0x00, 0x00, 0x00, 0x10, 0x01, 0x02);
+			try {
+				serdesDecoder.read(channel);
+				assertTrue("Corrupt compressed body was decoded", false);
+			} catch (IOException e) {
+			}
+			
+			serdesEncoder.closed();
+			
+			Serdes<SimpleConnection> otherEncoder = new SerdesImpl<SimpleConnection>(manager, network, null);
+			otherEncoder.writePacket(getPacket(text, protocol));
+			assertEquals("Compressor not shared after a channel closed", written, otherEncoder.write(channel));
+			
+			manager.shutdown();
+			
+			otherEncoder.writePacket(getPacket(text, protocol));
+			assertEquals("Compressor used after shutdown", 4 + text.length, otherEncoder.write(channel));
+		}
+		
+	}
+	
 	@Test
 	public void passthroughTest() throws IOException {
 		SimpleProtocol protocol = new SimpleProtocol();
@@ -277,4 +966,250 @@ public class SerDesTest  {
 		};
 	}
 
+	private static class GatheringFIFOChannel extends SimpleFIFOChannel implements GatheringByteChannel {
+		
+		private int allowance;
+		private int writes;
+
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			writes++;
+			long count = 0;
+			for (int i = offset; i < offset + length && allowance > 0; i++) {
+				ByteBuffer src = srcs[i];
+				while (src.hasRemaining() && allowance > 0) {
+					write((int) src.get());
+					allowance--;
+					count++;
+				}
+			}
+			return count;
+		}
+
+		public long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+		
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return (int) write(new ByteBuffer[] {src}, 0, 1);
+		}
+		
+	}
+
+	private static class RetainingProtocol extends SimpleProtocol {
+		
+		private final List<SharedBuffer> retained = new ArrayList<SharedBuffer>();
+		
+		private final RetainingDecoder<GenericPacket, SimpleConnection> decoder = new RetainingDecoder<GenericPacket, SimpleConnection>() {
+
+			public Protocol<SimpleConnection> getProtocol() {
+				return RetainingProtocol.this;
+			}
+
+			public GenericPacket decode(ByteBuffer header, ByteBuffer body) {
+				throw new UnsupportedOperationException();
+			}
+
+			public GenericPacket decode(ByteBuffer header, final SharedBuffer body) {
+				body.retain();
+				retained.add(body);
+				return new GenericPacket(0) {
+					@Override
+					public Object getData() {
+						return body.duplicate().getInt(0);
+					}
+				};
+			}
+			
+		};
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public <P extends Packet<SimpleConnection>> Decoder<P, SimpleConnection> getPacketDecoder(ByteBuffer header) {
+			return (Decoder<P, SimpleConnection>) decoder;
+		}
+		
+	}
+
+	private static class StreamingProtocol extends SimpleProtocol {
+		
+		private final StreamingEncoder<GenericPacket, SimpleConnection> encoder = new StreamingEncoder<GenericPacket, SimpleConnection>() {
+
+			public Protocol<SimpleConnection> getProtocol() {
+				return StreamingProtocol.this;
+			}
+
+			public void encode(GenericPacket packet, ByteBuffer buf) {
+				throw new UnsupportedOperationException();
+			}
+
+			public int getPacketBodySize(GenericPacket packet) {
+				throw new UnsupportedOperationException();
+			}
+
+			public void encodeBody(GenericPacket packet, BufferChain out) {
+				int size = (Integer) packet.getData();
+				for (int i = 0; i < size; i++) {
+					out.ensure(1).put((byte) i);
+				}
+			}
+
+			public void encodeHeader(GenericPacket packet, int bodySize, ByteBuffer header) {
+				header.putShort((short) 0xAA55);
+				header.putShort((short) bodySize);
+			}
+			
+		};
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public <P extends Packet<SimpleConnection>> Encoder<P, SimpleConnection> getPacketEncoder(Packet<SimpleConnection> packet) {
+			return (Encoder<P, SimpleConnection>) encoder;
+		}
+		
+	}
+
+	private static class CompressingProtocol extends SimpleProtocol implements CompressionProvider {
+		
+		private final static byte[] DICTIONARY = "the quick brown fox jumps over a dog ".getBytes();
+		
+		private int compressedHeaders;
+		
+		private final Decoder<GenericPacket, SimpleConnection> decoder = new Decoder<GenericPacket, SimpleConnection>() {
+
+			public Protocol<SimpleConnection> getProtocol() {
+				return CompressingProtocol.this;
+			}
+
+			public GenericPacket decode(ByteBuffer header, ByteBuffer body) {
+				if (isCompressed(header) || header.getShort(header.position() + 2) != body.remaining()) {
+					compressedHeaders++;
+				}
+				final byte[] data = new byte[body.remaining()];
+				body.get(data);
+				return new GenericPacket(4) {
+					@Override
+					public Object getData() {
+						return data;
+					}
+				};
+			}
+			
+		};
+		
+		private final Encoder<GenericPacket, SimpleConnection> encoder = new Encoder<GenericPacket, SimpleConnection>() {
+
+			public Protocol<SimpleConnection> getProtocol() {
+				return CompressingProtocol.this;
+			}
+
+			public void encode(GenericPacket packet, ByteBuffer buf) {
+				byte[] data = (byte[]) packet.getData();
+				buf.putShort((short) 0xAA55);
+				buf.putShort((short) data.length);
+				buf.put(data);
+			}
+
+			public int getPacketBodySize(GenericPacket packet) {
+				return ((byte[]) packet.getData()).length;
+			}
+			
+		};
+
+		public byte[] getCompressionDictionary() {
+			return DICTIONARY;
+		}
+
+		public int getCompressionThreshold() {
+			return 64;
+		}
+
+		public boolean isCompressed(ByteBuffer header) {
+			return (header.getShort(header.position() + 2) & 0x8000) != 0;
+		}
+
+		public void setCompressed(ByteBuffer header, boolean compressed, int bodySize) {
+			header.putShort(header.position() + 2, (short) (compressed ? bodySize | 0x8000 : bodySize));
+		}
+		
+		@Override
+		public int getPacketBodySize(ByteBuffer header) {
+			return header.getShort(header.position() + 2) & 0x7FFF;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public <P extends Packet<SimpleConnection>> Decoder<P, SimpleConnection> getPacketDecoder(ByteBuffer header) {
+			return (Decoder<P, SimpleConnection>) decoder;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public <P extends Packet<SimpleConnection>> Encoder<P, SimpleConnection> getPacketEncoder(Packet<SimpleConnection> packet) {
+			return (Encoder<P, SimpleConnection>) encoder;
+		}
+		
+	}
+
+	private static class Chunk {
+		
+		private final byte[] data;
+		private final long offset;
+		private final boolean last;
+		
+		public Chunk(byte[] data, long offset, boolean last) {
+			this.data = data;
+			this.offset = offset;
+			this.last = last;
+		}
+		
+	}
+	
+	private static class ChunkedProtocol extends SimpleProtocol {
+		
+		private final static int BODY_SIZE = 5000;
+		
+		private final ChunkedDecoder<GenericPacket, SimpleConnection> decoder = new ChunkedDecoder<GenericPacket, SimpleConnection>() {
+
+			public Protocol<SimpleConnection> getProtocol() {
+				return ChunkedProtocol.this;
+			}
+
+			public GenericPacket decode(ByteBuffer header, ByteBuffer body) {
+				throw new UnsupportedOperationException();
+			}
+
+			public GenericPacket decodeChunk(ByteBuffer header, ByteBuffer chunk, long offset, boolean last) {
+				byte[] data = new byte[chunk.remaining()];
+				chunk.get(data);
+				final Chunk c = new Chunk(data, offset, last);
+				return new GenericPacket(3) {
+					@Override
+					public Object getData() {
+						return c;
+					}
+				};
+			}
+			
+		};
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public <P extends Packet<SimpleConnection>> Decoder<P, SimpleConnection> getPacketDecoder(ByteBuffer header) {
+			if (header.getShort(header.position() + 2) == 3) {
+				return (Decoder<P, SimpleConnection>) decoder;
+			}
+			return super.getPacketDecoder(header);
+		}
+		
+		@Override
+		public int getPacketBodySize(ByteBuffer header) {
+			if (header.getShort(header.position() + 2) == 3) {
+				return BODY_SIZE;
+			}
+			return super.getPacketBodySize(header);
+		}
+		
+	}
+
 }
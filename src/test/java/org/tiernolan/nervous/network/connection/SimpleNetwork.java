@@ -1,11 +1,18 @@
 package org.tiernolan.nervous.network.connection;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.tiernolan.nervous.network.timer.HashedWheelTimer;
+import org.tiernolan.nervous.network.timer.Timeout;
 
 public class SimpleNetwork implements ChannelControl {
 
 	private AtomicBoolean writeRequest = new AtomicBoolean(false);
+	private volatile long flushDelay = 0;
+	private volatile Timeout flushTimeout = null;
+	private final AtomicInteger timerFlushes = new AtomicInteger(0);
+	private final HashedWheelTimer timer = new HashedWheelTimer(1, 8);
 	
 	public void clearWriteRequest() {
 		writeRequest.compareAndSet(true, false);
@@ -22,4 +29,39 @@ public class SimpleNetwork implements ChannelControl {
 	public void close() {
 	}
 	
+	public Timeout scheduleFlush(long delay) {
+		flushDelay = delay;
+		flushTimeout = timer.schedule(new Runnable() {
+			public void run() {
+				timerFlushes.incrementAndGet();
+			}
+		}, delay);
+		return flushTimeout;
+	}
+	
+	public long getFlushDelay() {
+		return flushDelay;
+	}
+	
+	public Timeout getFlushTimeout() {
+		return flushTimeout;
+	}
+	
+	public int expireFlushes(long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			timer.expire();
+			Thread.sleep(1);
+		}
+		timer.expire();
+		return timerFlushes.get();
+	}
+	
+	public boolean inboundQueued() {
+		return true;
+	}
+	
+	public void inboundHandled() {
+	}
+	
 }
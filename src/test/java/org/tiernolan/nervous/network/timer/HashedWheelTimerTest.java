@@ -0,0 +1,146 @@
+package org.tiernolan.nervous.network.timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+	@Test
+	public void expireTest() throws InterruptedException {
+
+		HashedWheelTimer timer = new HashedWheelTimer(5, 8);
+
+		final List<Integer> order = new ArrayList<Integer>();
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 4; i >= 0; i--) {
+			final int id = i;
+			timer.schedule(new Runnable() {
+				public void run() {
+					order.add(id);
+				}
+			}, 50 * i);
+		}
+
+		assertEquals("Timer size incorrect", 5, timer.size());
+
+		run(timer, 400);
+
+		assertTrue("Timer expired tasks early", System.currentTimeMillis() - start >= 200);
+
+		assertEquals("Not all tasks expired", 5, order.size());
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals("Tasks expired out of order", i, (int) order.get(i));
+		}
+
+		assertEquals("Timer not empty", 0, timer.size());
+
+		assertEquals("Empty timer requested a select timeout", 0, timer.getSelectTimeout());
+	}
+
+	@Test
+	public void roundsTest() throws InterruptedException {
+
+		HashedWheelTimer timer = new HashedWheelTimer(1, 4);
+
+		final AtomicInteger count = new AtomicInteger(0);
+
+		long start = System.currentTimeMillis();
+
+		Timeout timeout = timer.schedule(new Runnable() {
+			public void run() {
+				count.incrementAndGet();
+			}
+		}, 30);
+
+		while (count.get() == 0 && System.currentTimeMillis() - start < 1000) {
+			run(timer, 1);
+		}
+
+		assertTrue("Timeout did not expire", timeout.isExpired());
+		assertTrue("Timeout expired early", System.currentTimeMillis() - start >= 30);
+		assertEquals("Timeout expired more than once", 1, count.get());
+	}
+
+	@Test
+	public void cancelTest() throws InterruptedException {
+
+		HashedWheelTimer timer = new HashedWheelTimer(5, 8);
+
+		final AtomicInteger count = new AtomicInteger(0);
+
+		Runnable task = new Runnable() {
+			public void run() {
+				count.incrementAndGet();
+			}
+		};
+
+		Timeout pending = timer.schedule(task, 10);
+
+		assertTrue("Cancel failed", pending.cancel());
+
+		Timeout wheel = timer.schedule(task, 20);
+
+		timer.expire();
+
+		assertTrue("Cancel failed", wheel.cancel());
+		assertFalse("Cancel succeeded twice", wheel.cancel());
+
+		Timeout kept = timer.schedule(task, 20);
+
+		run(timer, 100);
+
+		assertEquals("Cancelled timeout expired", 1, count.get());
+		assertTrue("Timeout not expired", kept.isExpired());
+		assertFalse("Expired timeout cancelled", kept.cancel());
+		assertEquals("Timer not empty", 0, timer.size());
+	}
+
+	@Test
+	public void selectTimeoutTest() {
+
+		HashedWheelTimer timer = new HashedWheelTimer(10, 64);
+
+		Runnable task = new Runnable() {
+			public void run() {
+			}
+		};
+
+		timer.schedule(task, 400);
+		timer.expire();
+
+		long timeout = timer.getSelectTimeout();
+		assertTrue("Select timeout did not skip empty buckets " + timeout, timeout > 300 && timeout <= 420);
+
+		timer.schedule(task, 100);
+		timer.expire();
+
+		timeout = timer.getSelectTimeout();
+		assertTrue("Select timeout did not track the earlier timeout " + timeout, timeout > 0 && timeout <= 120);
+
+		timer.clear();
+	}
+
+	private void run(HashedWheelTimer timer, long duration) throws InterruptedException {
+		long end = System.currentTimeMillis() + duration;
+		while (System.currentTimeMillis() < end) {
+			long timeout = timer.getSelectTimeout();
+			if (timeout > 0) {
+				Thread.sleep(Math.min(timeout, Math.max(1, end - System.currentTimeMillis())));
+			} else if (timeout == 0) {
+				Thread.sleep(1);
+			}
+			timer.expire();
+		}
+	}
+
+}